@@ -2,6 +2,9 @@ package codes.evo.snapshot;
 
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.View;
@@ -9,31 +12,44 @@ import android.widget.Button;
 import android.widget.Toast;
 
 import codes.evo.snapshotlib.CameraException;
+import codes.evo.snapshotlib.ImageLease;
 import codes.evo.snapshotlib.SnapshotMaker;
 import codes.evo.snapshotlib.SnapshotMakerCompat;
 import codes.evo.snapshotlib.utils.BackgroundWorker;
+import codes.evo.snapshotlib.utils.ByteArrayPool;
 import codes.evo.snapshotlib.utils.LocalFileStorage;
-import codes.evo.snapshotlib.utils.SnapshotSaver;
+import codes.evo.snapshotlib.utils.SnapshotPipeline;
+import codes.evo.snapshotlib.utils.StorageQuota;
 
 public class ExampleActivity extends AppCompatActivity {
 
     private static final String TAG = "ExampleActivity";
+    private static final long BUFFER_POOL_SIZE = 32 * 1024 * 1024;
+    private static final int SAVE_QUEUE_CAPACITY = 8;
+    private static final long STORAGE_QUOTA_BYTES = 512 * 1024 * 1024;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 
-    // To start a task, you can use BackgroundWorker.Client or run a background thread in another way
-    private BackgroundWorker.Client mBgClient;
     private SnapshotMaker mSnapshotMaker;
-    private String mSnapshotName;
-    private int mCounter = 0;
+    // Snapshot arrays are borrowed from the pool and returned by SnapshotSaver once they are written
+    private final ByteArrayPool mBufferPool = new ByteArrayPool(BUFFER_POOL_SIZE);
+    // Snapshots are written on the threads of the pipeline, so the camera thread is never held by the disk.
+    // A burst which doesn't fit into the queue is reported through SnapshotListener.onImageSaveFailed
+    private final SnapshotPipeline mSavePipeline =
+            new SnapshotPipeline(SAVE_QUEUE_CAPACITY, SnapshotPipeline.OverflowPolicy.REJECT);
 
     private final SnapshotMaker.CameraListener mCameraListener = new SnapshotMaker.CameraListener() {
 
         @Override
-        public void onImageTaken(byte[] result) {
-            showToast(ExampleActivity.this, "onImageTaken");
-            // You can use SnapshotSaver or handle an array of bytes (image) another way at pleasure
-            SnapshotSaver saver = new SnapshotSaver(result, mSnapshotName);
-            saver.setSnapshotListener(mSnapshotListener);
-            mBgClient.post(saver);
+        public void onImageTaken(long requestId, byte[] result, int length) {
+            showToast(ExampleActivity.this, "onImageTaken : " + requestId);
+            // You can use SnapshotPipeline, SnapshotSaver or handle an array of bytes (image) another way at pleasure
+            mSavePipeline.submit(result, length, LocalFileStorage.generateSnapshotName(requestId), null);
+        }
+
+        @Override
+        public void onCaptureFailed(long requestId, Exception e) {
+            showToast(ExampleActivity.this, "onCaptureFailed : " + requestId);
         }
 
         @Override
@@ -52,13 +68,29 @@ public class ExampleActivity extends AppCompatActivity {
         }
     };
 
+    private final SnapshotMaker.ImageLeaseListener mImageLeaseListener =
+            new SnapshotMaker.ImageLeaseListener() {
+                @Override
+                public void onImageLeased(ImageLease lease) {
+                    // The image is copied to a pooled array and the camera buffer is given back right away
+                    String name = LocalFileStorage.generateSnapshotName(lease.getRequestId());
+                    mSavePipeline.submit(lease, name, mBufferPool);
+                }
+            };
+
     private final SnapshotMaker.SnapshotListener mSnapshotListener =
             new SnapshotMaker.SnapshotListener() {
                 @Override
-                public void onImageSaved(String photoPath) {
-                    showToast(ExampleActivity.this, "onImageSaved to : " + photoPath);
+                public void onImageSaved(String snapshotName, @Nullable String photoPath) {
+                    // A packed snapshot has no file of its own until it's extracted
+                    showToast(ExampleActivity.this, "onImageSaved : " + (photoPath != null ? photoPath : snapshotName));
                     // Then you can send the image to the cloud, or some other action
                 }
+
+                @Override
+                public void onImageSaveFailed(String snapshotName, Exception e) {
+                    showToast(ExampleActivity.this, "onImageSaveFailed : " + snapshotName);
+                }
             };
 
     @Override
@@ -69,11 +101,16 @@ public class ExampleActivity extends AppCompatActivity {
         // If you'll use our SnapshotSaver, you must initialize LocalFileStorage to save the snapshots on sdCard
         LocalFileStorage.init(this);
 
+        mSavePipeline.setSnapshotListener(mSnapshotListener);
+
         BackgroundWorker backgroundWorker = new BackgroundWorker();
-        mBgClient = backgroundWorker.getDefault();
+        // The oldest snapshots are deleted once they take more than the quota
+        LocalFileStorage.setQuota(new StorageQuota(backgroundWorker, STORAGE_QUOTA_BYTES, Integer.MAX_VALUE));
         mSnapshotMaker = SnapshotMakerCompat.get(this, backgroundWorker);
         mSnapshotMaker.requestPermission(this);
         mSnapshotMaker.setCameraListener(mCameraListener);
+        // Without the lease listener images are delivered to CameraListener.onImageTaken
+        mSnapshotMaker.setImageLeaseListener(mImageLeaseListener);
 
         Button open = (Button) findViewById(R.id.open_btn);
         open.setOnClickListener(new View.OnClickListener() {
@@ -87,14 +124,13 @@ public class ExampleActivity extends AppCompatActivity {
             }
         });
 
-        final String name = "/file_name";
         Button capture = (Button) findViewById(R.id.capture_btn);
         capture.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                mSnapshotMaker.takeImage();
-                mSnapshotName = name + "_" + String.valueOf(mCounter);
-                mCounter++;
+                // The id comes back with the image, so every image is saved under its own name
+                long requestId = mSnapshotMaker.takeImage();
+                Log.d(TAG, "Requested image " + requestId);
             }
         });
 
@@ -107,7 +143,13 @@ public class ExampleActivity extends AppCompatActivity {
         });
     }
 
-    public static void showToast(Context context, String text) {
-        Toast.makeText(context, text, Toast.LENGTH_SHORT).show();
+    public static void showToast(final Context context, final String text) {
+        // Listeners are called on worker threads, some of them have no looper for a toast
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(context, text, Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 }
@@ -0,0 +1,25 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * Stand-in of the Android class for benchmarks, files go to the temporary directory of the JVM
+ */
+public class Context {
+
+    private final File mFilesDir;
+
+    public Context(File filesDir) {
+        mFilesDir = filesDir;
+    }
+
+    public File getExternalFilesDir(String type) {
+        File dir = new File(mFilesDir, type);
+        dir.mkdirs();
+        return dir;
+    }
+
+    public File getCacheDir() {
+        return mFilesDir;
+    }
+}
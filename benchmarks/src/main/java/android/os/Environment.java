@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * Stand-in of the Android class for benchmarks
+ */
+public class Environment {
+
+    public static final String DIRECTORY_PICTURES = "Pictures";
+    public static final String MEDIA_MOUNTED = "mounted";
+
+    public static String getExternalStorageState() {
+        return MEDIA_MOUNTED;
+    }
+}
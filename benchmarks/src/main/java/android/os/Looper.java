@@ -0,0 +1,130 @@
+package android.os;
+
+/**
+ * Stand-in of the Android class for benchmarks. Like the Android message queue it's a linked list
+ * of messages sorted by time and guarded by a single lock, so contention of posting threads is alike
+ */
+public final class Looper {
+
+    private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<>();
+
+    private final Thread mThread;
+    private Message mMessages;
+    private boolean mQuitting;
+
+    private Looper() {
+        mThread = Thread.currentThread();
+    }
+
+    public static void prepare() {
+        if (sThreadLocal.get() != null) {
+            throw new RuntimeException("Only one Looper may be created per thread");
+        }
+        sThreadLocal.set(new Looper());
+    }
+
+    public static Looper myLooper() {
+        return sThreadLocal.get();
+    }
+
+    public static void loop() {
+        Looper looper = myLooper();
+        if (looper == null) {
+            throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+        }
+        while (true) {
+            Message message = looper.next();
+            if (message == null) {
+                return;
+            }
+            message.target.dispatchMessage(message);
+        }
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    public synchronized void quit() {
+        mQuitting = true;
+        mMessages = null;
+        notifyAll();
+    }
+
+    public void quitSafely() {
+        quit();
+    }
+
+    synchronized boolean enqueueMessage(Message message, long when) {
+        if (mQuitting) {
+            return false;
+        }
+        message.when = when;
+        Message prev = null;
+        Message current = mMessages;
+        while (current != null && current.when <= when) {
+            prev = current;
+            current = current.next;
+        }
+        message.next = current;
+        if (prev == null) {
+            mMessages = message;
+            notifyAll();
+        } else {
+            prev.next = message;
+        }
+        return true;
+    }
+
+    synchronized void removeMessages(Handler handler, int what, Runnable callback) {
+        Message prev = null;
+        Message current = mMessages;
+        while (current != null) {
+            boolean matches = current.target == handler
+                    && (callback != null ? current.callback == callback : current.what == what && current.callback == null);
+            if (matches) {
+                if (prev == null) {
+                    mMessages = current.next;
+                } else {
+                    prev.next = current.next;
+                }
+            } else {
+                prev = current;
+            }
+            current = current.next;
+        }
+    }
+
+    synchronized boolean hasMessages(Handler handler, int what) {
+        for (Message current = mMessages; current != null; current = current.next) {
+            if (current.target == handler && current.what == what && current.callback == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized Message next() {
+        while (true) {
+            if (mQuitting) {
+                return null;
+            }
+            long now = SystemClock.uptimeMillis();
+            if (mMessages != null && mMessages.when <= now) {
+                Message message = mMessages;
+                mMessages = message.next;
+                message.next = null;
+                return message;
+            }
+            try {
+                if (mMessages == null) {
+                    wait();
+                } else {
+                    wait(mMessages.when - now);
+                }
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package android.os;
+
+/**
+ * Stand-in of the Android class for benchmarks
+ */
+public class Message {
+
+    public int what;
+    public int arg1;
+    public int arg2;
+    public Object obj;
+
+    Handler target;
+    Runnable callback;
+    long when;
+    Message next;
+
+    public static Message obtain(Handler handler, int what) {
+        Message message = new Message();
+        message.target = handler;
+        message.what = what;
+        return message;
+    }
+
+    public static Message obtain(Handler handler, int what, Object obj) {
+        Message message = obtain(handler, what);
+        message.obj = obj;
+        return message;
+    }
+
+    public void sendToTarget() {
+        target.sendMessage(this);
+    }
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * Stand-in of the Android class for benchmarks, thread priorities are ignored
+ */
+public class Process {
+
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+    public static final int THREAD_PRIORITY_FOREGROUND = -2;
+
+    public static void setThreadPriority(int priority) {
+    }
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * Stand-in of the Android class for benchmarks
+ */
+public final class SystemClock {
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    public static long elapsedRealtime() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,11 @@
+package android.support.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Stand-in of the support annotation for benchmarks
+ */
+@Retention(RetentionPolicy.CLASS)
+public @interface WorkerThread {
+}
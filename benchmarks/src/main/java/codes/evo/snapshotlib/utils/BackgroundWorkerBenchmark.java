@@ -0,0 +1,75 @@
+package codes.evo.snapshotlib.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link BackgroundWorker.Client#post(Runnable)} when several threads post to one lane.
+ * Posting is throttled by a bounded number of queued tasks, so the lane thread keeps up and
+ * the queue doesn't grow for the whole run
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BackgroundWorkerBenchmark {
+
+    private static final int MAX_QUEUED_TASKS = 1024;
+
+    private BackgroundWorker.Client mClient;
+    private final Semaphore mQueuedTasks = new Semaphore(MAX_QUEUED_TASKS);
+
+    private final Runnable mTask = new Runnable() {
+        @Override
+        public void run() {
+            mQueuedTasks.release();
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        mClient = new BackgroundWorker().getClient(BackgroundWorker.Lane.CAMERA);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void post() {
+        mQueuedTasks.acquireUninterruptibly();
+        mClient.post(mTask);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void postContended() {
+        mQueuedTasks.acquireUninterruptibly();
+        mClient.post(mTask);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void postAndWait() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mClient.post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+}
@@ -0,0 +1,53 @@
+package codes.evo.snapshotlib.utils;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Naming of snapshots and their paths, which run once per shot. No snapshot is saved, so the manifest
+ * and the pack storage, which are opened by the first save, stay out of the measurements
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LocalFileStorageBenchmark {
+
+    @Setup
+    public void setUp() {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "snapshot-benchmark");
+        LocalFileStorage.init(new Context(dir));
+    }
+
+    @Benchmark
+    public String generateUniqueName() {
+        return LocalFileStorage.generateUniqueName();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String generateUniqueNameContended() {
+        return LocalFileStorage.generateUniqueName();
+    }
+
+    @Benchmark
+    public String getPhotoFilePath() {
+        return LocalFileStorage.getPhotoFilePath("20170101_120000_1");
+    }
+}
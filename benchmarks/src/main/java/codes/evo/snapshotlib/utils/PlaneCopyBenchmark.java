@@ -0,0 +1,67 @@
+package codes.evo.snapshotlib.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies of a JPEG plane to the heap, the way images are handed to CameraListener.onImageTaken
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PlaneCopyBenchmark {
+
+    private static final long POOL_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * JPEG sizes of a VGA, a 5 MP and a 13 MP shot
+     */
+    @Param({"131072", "1572864", "4194304"})
+    public int jpegSize;
+
+    private ByteBuffer mPlane;
+    private ByteArrayPool mPool;
+
+    @Setup
+    public void setUp() {
+        byte[] content = new byte[jpegSize];
+        new Random(jpegSize).nextBytes(content);
+        mPlane = ByteBuffer.allocateDirect(jpegSize);
+        mPlane.put(content);
+        mPlane.flip();
+        mPool = new ByteArrayPool(POOL_SIZE);
+    }
+
+    @Benchmark
+    public byte[] copyToNewArray() {
+        ByteBuffer buffer = mPlane.duplicate();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public byte[] copyToPooledArray() {
+        ByteBuffer buffer = mPlane.duplicate();
+        byte[] bytes = mPool.acquire(buffer.remaining());
+        buffer.get(bytes, 0, buffer.remaining());
+        mPool.release(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,111 @@
+package codes.evo.snapshotlib.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StreamUtils#save} against other ways to write a snapshot to a file
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StreamUtilsBenchmark {
+
+    @Param({"131072", "1572864", "4194304"})
+    public int jpegSize;
+
+    private byte[] mBytes;
+    private ByteBuffer mDirectBuffer;
+    private File mFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mBytes = new byte[jpegSize];
+        new Random(jpegSize).nextBytes(mBytes);
+        mDirectBuffer = ByteBuffer.allocateDirect(jpegSize);
+        mDirectBuffer.put(mBytes);
+        mDirectBuffer.flip();
+        mFile = File.createTempFile("snapshot", ".jpg");
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public void streamUtilsSaveArray() throws IOException {
+        StreamUtils.save(mBytes, mFile.getPath());
+    }
+
+    @Benchmark
+    public void streamUtilsSaveDirectBuffer() throws IOException {
+        StreamUtils.save(mDirectBuffer.duplicate(), mFile.getPath());
+    }
+
+    @Benchmark
+    public void bufferedStream() throws IOException {
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(mFile));
+        try {
+            out.write(mBytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Benchmark
+    public void channelWithHeapBuffer() throws IOException {
+        writeToChannel(ByteBuffer.wrap(mBytes));
+    }
+
+    @Benchmark
+    public void channelWithDirectBufferAndSync() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = mDirectBuffer.duplicate();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.truncate(jpegSize);
+            channel.force(false);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void writeToChannel(ByteBuffer buffer) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package codes.evo.snapshotlib;
+
+import java.nio.ByteBuffer;
+
+import codes.evo.snapshotlib.utils.ByteArrayPool;
+
+/**
+ * Lease of an image which the camera has already handed over as an array, e.g. by Camera API v1
+ */
+class ByteArrayImageLease extends ImageLease {
+
+    private final byte[] mData;
+    private final int mWidth;
+    private final int mHeight;
+
+    ByteArrayImageLease(byte[] data, int width, int height) {
+        mData = data;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * The array is owned by the lease, so it's returned without copying
+     */
+    @Override
+    public byte[] toByteArray() {
+        if (isReleased()) {
+            throw new IllegalStateException("Image lease has already been released");
+        }
+        return mData;
+    }
+
+    /**
+     * The camera has already allocated the array, copying it to a pooled one would only cost time.
+     * The array can still be released to the pool and be reused by the next captures
+     */
+    @Override
+    public byte[] toByteArray(ByteArrayPool pool) {
+        return toByteArray();
+    }
+
+    @Override
+    protected ByteBuffer onGetBuffer() {
+        return ByteBuffer.wrap(mData);
+    }
+
+    @Override
+    protected void onRelease() {
+    }
+}
@@ -0,0 +1,66 @@
+package codes.evo.snapshotlib;
+
+import android.graphics.ImageFormat;
+import android.util.SparseArray;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a camera can do, read once from the framework and kept in {@link codes.evo.snapshotlib.utils.CameraCapabilityCache}.
+ * Lens facing values are the ones of the camera API the capabilities were read with
+ */
+public final class CameraCapabilities {
+
+    private final String mCameraId;
+    private final int mLensFacing;
+    private final int mSensorOrientation;
+    private final SparseArray<List<PictureSize>> mOutputSizes;
+
+    /**
+     * @param outputSizes supported sizes by output format, the keys are {@link ImageFormat} constants
+     */
+    public CameraCapabilities(String cameraId, int lensFacing, int sensorOrientation,
+                              SparseArray<List<PictureSize>> outputSizes) {
+        mCameraId = cameraId;
+        mLensFacing = lensFacing;
+        mSensorOrientation = sensorOrientation;
+        mOutputSizes = outputSizes;
+    }
+
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    public int getLensFacing() {
+        return mLensFacing;
+    }
+
+    public int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    public int[] getOutputFormats() {
+        int[] formats = new int[mOutputSizes.size()];
+        for (int i = 0; i < formats.length; i++) {
+            formats[i] = mOutputSizes.keyAt(i);
+        }
+        return formats;
+    }
+
+    public boolean isOutputSupported(int format) {
+        return mOutputSizes.indexOfKey(format) >= 0;
+    }
+
+    /**
+     * @return supported sizes of the format or an empty list if the format isn't supported
+     */
+    public List<PictureSize> getOutputSizes(int format) {
+        List<PictureSize> sizes = mOutputSizes.get(format);
+        return sizes == null ? Collections.<PictureSize>emptyList() : sizes;
+    }
+
+    public List<PictureSize> getJpegSizes() {
+        return getOutputSizes(ImageFormat.JPEG);
+    }
+}
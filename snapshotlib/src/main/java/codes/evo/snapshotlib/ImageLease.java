@@ -0,0 +1,139 @@
+package codes.evo.snapshotlib;
+
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+import codes.evo.snapshotlib.utils.ByteArrayPool;
+
+/**
+ * Gives access to the bytes of a taken image without copying them to the heap.
+ * The lease must be released as soon as the image isn't needed anymore, until then the buffer
+ * stays owned by the consumer and the camera cannot reuse it
+ */
+public abstract class ImageLease {
+
+    private volatile boolean mReleased;
+    private long mCaptureRequestedNanos;
+    private long mRequestId;
+    private int mOrientation;
+    private ImageLease mThumbnail;
+
+    /**
+     * @return read-only view of the image bytes, position is at the first byte of the image
+     */
+    public ByteBuffer getBuffer() {
+        checkNotReleased();
+        return onGetBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return count of image bytes
+     */
+    public int getSize() {
+        checkNotReleased();
+        return onGetBuffer().remaining();
+    }
+
+    public abstract int getWidth();
+
+    public abstract int getHeight();
+
+    /**
+     * Copies the image to a new array. Prefer {@link #getBuffer()} when the bytes are only read
+     */
+    public byte[] toByteArray() {
+        ByteBuffer buffer = getBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Copies the image to an array borrowed from the pool. The array is usually bigger than the image,
+     * only the first {@link #getSize()} bytes are valid. The array should be returned to the pool
+     * when it isn't needed anymore, e.g. by {@link codes.evo.snapshotlib.utils.SnapshotSaver}
+     */
+    public byte[] toByteArray(ByteArrayPool pool) {
+        ByteBuffer buffer = getBuffer();
+        byte[] bytes = pool.acquire(buffer.remaining());
+        buffer.get(bytes, 0, buffer.remaining());
+        return bytes;
+    }
+
+    /**
+     * @return value of {@link System#nanoTime()} when the image was requested from the camera,
+     * 0 if it's unknown
+     */
+    public long getCaptureRequestedNanos() {
+        return mCaptureRequestedNanos;
+    }
+
+    void setCaptureRequestedNanos(long captureRequestedNanos) {
+        mCaptureRequestedNanos = captureRequestedNanos;
+    }
+
+    /**
+     * @return id of the request which took the image, see {@link SnapshotMaker#takeImage()}
+     */
+    public long getRequestId() {
+        return mRequestId;
+    }
+
+    void setRequestId(long requestId) {
+        mRequestId = requestId;
+    }
+
+    /**
+     * @return clockwise rotation of the JPEG in degrees which was requested from the camera,
+     * 0 if the image isn't rotated or it's unknown
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    void setOrientation(int orientation) {
+        mOrientation = orientation;
+    }
+
+    /**
+     * @return low-resolution frame taken by the same capture, its buffer holds the frame in NV21.
+     * Null if thumbnails are off or the frame was lost. It isn't backed by a camera buffer,
+     * so it may be kept after this lease is released
+     */
+    @Nullable
+    public ImageLease getThumbnail() {
+        return mThumbnail;
+    }
+
+    void setThumbnail(ImageLease thumbnail) {
+        mThumbnail = thumbnail;
+    }
+
+    public boolean isReleased() {
+        return mReleased;
+    }
+
+    /**
+     * Gives the image back to the camera. Can be called on any thread, repeated calls are ignored
+     */
+    public void release() {
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+        }
+        onRelease();
+    }
+
+    protected abstract ByteBuffer onGetBuffer();
+
+    protected abstract void onRelease();
+
+    private void checkNotReleased() {
+        if (mReleased) {
+            throw new IllegalStateException("Image lease has already been released");
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package codes.evo.snapshotlib;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.media.ImageReader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lease of a JPEG {@link Image} acquired from an ImageReader. The direct buffer of the image plane
+ * is handed out as is, the image is closed on release
+ */
+@TargetApi(21)
+class MediaImageLease extends ImageLease {
+
+    interface OnReleaseListener {
+
+        void onLeaseReleased(MediaImageLease lease);
+    }
+
+    private final Image mImage;
+    private final ImageReader mReader;
+    private final OnReleaseListener mReleaseListener;
+
+    /**
+     * @param reader reader the image was acquired from, it must stay open until the lease is released
+     */
+    MediaImageLease(Image image, ImageReader reader, OnReleaseListener releaseListener) {
+        mImage = image;
+        mReader = reader;
+        mReleaseListener = releaseListener;
+    }
+
+    ImageReader getReader() {
+        return mReader;
+    }
+
+    @Override
+    public int getWidth() {
+        return mImage.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mImage.getHeight();
+    }
+
+    @Override
+    protected ByteBuffer onGetBuffer() {
+        return mImage.getPlanes()[0].getBuffer();
+    }
+
+    @Override
+    protected void onRelease() {
+        mImage.close();
+        if (mReleaseListener != null) {
+            mReleaseListener.onLeaseReleased(this);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package codes.evo.snapshotlib;
+
+/**
+ * Image requested by {@link SnapshotMaker#takeImage()} which hasn't been delivered yet
+ */
+class PendingCapture {
+
+    private final long mRequestId;
+    private long mShutterStartNanos;
+    private long mSensorTimestamp;
+    private int mJpegOrientation;
+    private boolean mIsThumbnailLost;
+
+    PendingCapture(long requestId) {
+        mRequestId = requestId;
+    }
+
+    long getRequestId() {
+        return mRequestId;
+    }
+
+    long getShutterStartNanos() {
+        return mShutterStartNanos;
+    }
+
+    void setShutterStartNanos(long shutterStartNanos) {
+        mShutterStartNanos = shutterStartNanos;
+    }
+
+    /**
+     * @return timestamp of the exposure start, the same as the timestamp of the image, 0 until the capture has started
+     */
+    long getSensorTimestamp() {
+        return mSensorTimestamp;
+    }
+
+    void setSensorTimestamp(long sensorTimestamp) {
+        mSensorTimestamp = sensorTimestamp;
+    }
+
+    int getJpegOrientation() {
+        return mJpegOrientation;
+    }
+
+    void setJpegOrientation(int jpegOrientation) {
+        mJpegOrientation = jpegOrientation;
+    }
+
+    /**
+     * @return true if the camera reported that the thumbnail of the capture won't come
+     */
+    boolean isThumbnailLost() {
+        return mIsThumbnailLost;
+    }
+
+    void setThumbnailLost(boolean isThumbnailLost) {
+        mIsThumbnailLost = isThumbnailLost;
+    }
+}
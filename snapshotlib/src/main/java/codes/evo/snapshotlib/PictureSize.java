@@ -0,0 +1,49 @@
+package codes.evo.snapshotlib;
+
+/**
+ * Size of a camera output in pixels, the same for Camera API v1 and v2
+ */
+public final class PictureSize {
+
+    private final int mWidth;
+    private final int mHeight;
+
+    public PictureSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getArea() {
+        return (long) mWidth * mHeight;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PictureSize)) {
+            return false;
+        }
+        PictureSize size = (PictureSize) o;
+        return mWidth == size.mWidth && mHeight == size.mHeight;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mWidth + mHeight;
+    }
+
+    @Override
+    public String toString() {
+        return mWidth + "x" + mHeight;
+    }
+}
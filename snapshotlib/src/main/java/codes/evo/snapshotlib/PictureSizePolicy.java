@@ -0,0 +1,125 @@
+package codes.evo.snapshotlib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses the size of taken images from the sizes the camera supports. Sizes are given
+ * in the orientation of the sensor, which is landscape on almost every device,
+ * so targets and aspect ratios are compared with the long side first.
+ * The size is chosen once when the camera is opened
+ */
+public abstract class PictureSizePolicy {
+
+    private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+
+    private static final Comparator<PictureSize> BY_AREA = new Comparator<PictureSize>() {
+        @Override
+        public int compare(PictureSize lhs, PictureSize rhs) {
+            return Long.signum(lhs.getArea() - rhs.getArea());
+        }
+    };
+
+    /**
+     * @param sizes supported sizes, never empty
+     * @return one of the sizes
+     */
+    public abstract PictureSize select(List<PictureSize> sizes);
+
+    /**
+     * The biggest size, it costs the most time, memory and disk
+     */
+    public static PictureSizePolicy largest() {
+        return byComparator(BY_AREA);
+    }
+
+    /**
+     * @return the smallest size which covers the target, or the biggest one if none does
+     */
+    public static PictureSizePolicy atLeast(int width, int height) {
+        final int longSide = Math.max(width, height);
+        final int shortSide = Math.min(width, height);
+        return new PictureSizePolicy() {
+            @Override
+            public PictureSize select(List<PictureSize> sizes) {
+                List<PictureSize> coveringSizes = new ArrayList<>();
+                for (PictureSize size : sizes) {
+                    if (getLongSide(size) >= longSide && getShortSide(size) >= shortSide) {
+                        coveringSizes.add(size);
+                    }
+                }
+                if (coveringSizes.isEmpty()) {
+                    return selectLargest(sizes);
+                }
+                return Collections.min(coveringSizes, BY_AREA);
+            }
+        };
+    }
+
+    /**
+     * @return the biggest size which has at most the given count of megapixels, or the smallest one if none has
+     */
+    public static PictureSizePolicy maxMegapixels(float megapixels) {
+        final long maxArea = (long) (megapixels * 1000000);
+        return new PictureSizePolicy() {
+            @Override
+            public PictureSize select(List<PictureSize> sizes) {
+                PictureSize result = null;
+                for (PictureSize size : sizes) {
+                    if (size.getArea() <= maxArea && (result == null || size.getArea() > result.getArea())) {
+                        result = size;
+                    }
+                }
+                return result != null ? result : Collections.min(sizes, BY_AREA);
+            }
+        };
+    }
+
+    /**
+     * @param comparator order of sizes, the greatest size is chosen
+     */
+    public static PictureSizePolicy byComparator(final Comparator<PictureSize> comparator) {
+        return new PictureSizePolicy() {
+            @Override
+            public PictureSize select(List<PictureSize> sizes) {
+                return Collections.max(sizes, comparator);
+            }
+        };
+    }
+
+    /**
+     * Narrows the sizes down to the ones with the given aspect ratio before this policy chooses,
+     * when there are none of them this policy chooses from all sizes
+     */
+    public PictureSizePolicy withAspectRatio(int width, int height) {
+        final float aspectRatio = (float) Math.max(width, height) / Math.min(width, height);
+        final PictureSizePolicy policy = this;
+        return new PictureSizePolicy() {
+            @Override
+            public PictureSize select(List<PictureSize> sizes) {
+                List<PictureSize> matchingSizes = new ArrayList<>();
+                for (PictureSize size : sizes) {
+                    float sizeAspectRatio = (float) getLongSide(size) / getShortSide(size);
+                    if (Math.abs(sizeAspectRatio - aspectRatio) <= ASPECT_RATIO_TOLERANCE * aspectRatio) {
+                        matchingSizes.add(size);
+                    }
+                }
+                return policy.select(matchingSizes.isEmpty() ? sizes : matchingSizes);
+            }
+        };
+    }
+
+    private static PictureSize selectLargest(List<PictureSize> sizes) {
+        return Collections.max(sizes, BY_AREA);
+    }
+
+    private static int getLongSide(PictureSize size) {
+        return Math.max(size.getWidth(), size.getHeight());
+    }
+
+    private static int getShortSide(PictureSize size) {
+        return Math.max(1, Math.min(size.getWidth(), size.getHeight()));
+    }
+}
@@ -2,7 +2,17 @@ package codes.evo.snapshotlib;
 
 import android.app.Activity;
 import android.content.Context;
+import android.support.annotation.Nullable;
 
+import codes.evo.snapshotlib.utils.ByteArrayPool;
+import codes.evo.snapshotlib.utils.LocalFileStorage;
+
+/**
+ * Commands ({@link #openCamera(Context)}, {@link #takeImage()}, {@link #takeBurst(int)}, {@link #closeCamera()})
+ * may be issued on any thread. They are queued to the worker thread which also handles the callbacks
+ * of the camera and run there one by one in the order they were issued, so the state of the camera
+ * is only changed on that thread. Listeners are called on the worker thread too
+ */
 public interface SnapshotMaker {
 
     enum CameraState {
@@ -13,12 +23,45 @@ public interface SnapshotMaker {
 
     interface SnapshotListener {
 
-        void onImageSaved(String photoPath);
+        /**
+         * @param snapshotName name of the saved snapshot, {@link LocalFileStorage#readMedia(String)} reads it
+         * @param photoPath    path of its file, or null if the snapshot was packed,
+         *                     see {@link LocalFileStorage#extractMedia(String)}
+         */
+        void onImageSaved(String snapshotName, @Nullable String photoPath);
+
+        /**
+         * @param snapshotName name of the snapshot which wasn't saved
+         * @param e            cause, e.g. an IOException or a RejectedExecutionException
+         *                     if the snapshot didn't fit into the save queue
+         */
+        void onImageSaveFailed(String snapshotName, Exception e);
+    }
+
+    interface StateListener {
+
+        /**
+         * Called on the worker thread after every transition, in the order of transitions
+         */
+        void onStateChanged(CameraState oldState, CameraState newState);
     }
 
     interface CameraListener {
 
-        void onImageTaken(byte[] result);
+        /**
+         * @param requestId id returned by {@link SnapshotMaker#takeImage()} or {@link SnapshotMaker#takeBurst(int)}
+         * @param result    the taken image, an array borrowed from the pool of
+         *                  {@link SnapshotMaker#setByteArrayPool(ByteArrayPool)} is usually bigger than the image
+         * @param length    count of valid bytes in the array
+         */
+        void onImageTaken(long requestId, byte[] result, int length);
+
+        /**
+         * The image of the request won't come, e.g. the capture failed or the camera was closed before it
+         *
+         * @param requestId id returned by {@link SnapshotMaker#takeImage()} or {@link SnapshotMaker#takeBurst(int)}
+         */
+        void onCaptureFailed(long requestId, Exception e);
 
         void onImageFailed(Exception e, String errMessage);
 
@@ -27,19 +70,102 @@ public interface SnapshotMaker {
         void onCameraClosed();
     }
 
+    interface WarmUpListener {
+
+        /**
+         * Called on the worker thread every time auto-exposure and auto white balance have settled,
+         * images taken from now on come out with the right exposure and with the shortest delay
+         */
+        void onCaptureReady();
+    }
+
+    interface ImageLeaseListener {
+
+        /**
+         * Hands over a taken image without copying it. The lease must be released by the listener,
+         * images which are not released hold buffers of the camera and slow down next captures
+         *
+         * @param lease the taken image
+         */
+        void onImageLeased(ImageLease lease);
+    }
+
     /**
-     * Context only need for check has permission on create snapshots, starting with Android.M
+     * Context only need for check has permission on create snapshots, starting with Android.M.
+     * The camera is looked for and opened on the worker thread, so a missing front-facing camera,
+     * a camera which fails to open and a camera which is already open are all reported
+     * through {@link CameraListener#onImageFailed}
      *
      * @param context
-     * @throws CameraException
+     * @throws CameraException not thrown by the makers of this library, kept for other implementations
      */
     void openCamera(Context context) throws CameraException;
 
-    void takeImage();
+    /**
+     * @return id of the request, the image or the failure comes back with it
+     */
+    long takeImage();
+
+    /**
+     * Takes several images back to back. Every frame is delivered separately
+     * through {@link CameraListener#onImageTaken(long, byte[], int)} in capture order
+     *
+     * @param count number of images to take, must be positive
+     * @return id of the first image, the other images have the following ids
+     */
+    long takeBurst(int count);
 
     void closeCamera();
 
     void requestPermission(Activity activity);
 
     void setCameraListener(CameraListener listener);
+
+    void setStateListener(StateListener listener);
+
+    /**
+     * When the lease listener is set, taken images are delivered to it instead of
+     * {@link CameraListener#onImageTaken(long, byte[], int)}. Other events still go to the camera listener
+     *
+     * @param listener listener or null to get images as byte arrays again
+     */
+    void setImageLeaseListener(ImageLeaseListener listener);
+
+    /**
+     * Images for {@link CameraListener#onImageTaken(long, byte[], int)} are copied to arrays borrowed
+     * from the pool, the listener should return them once they are written, e.g. through
+     * {@link codes.evo.snapshotlib.utils.SnapshotSaver}. Without a pool every image gets a new array
+     *
+     * @param pool pool or null to allocate arrays
+     */
+    void setByteArrayPool(@Nullable ByteArrayPool pool);
+
+    /**
+     * When the capture to file listener is set, taken images are written straight to
+     * {@link codes.evo.snapshotlib.utils.LocalFileStorage} on the I/O thread and are not delivered
+     * to the other listeners. The camera buffer is written to the file without a copy on the heap,
+     * {@link codes.evo.snapshotlib.utils.LocalFileStorage} must be initialized
+     *
+     * @param listener listener of saved images or null to deliver images to the other listeners again
+     */
+    void setCaptureToFileListener(SnapshotListener listener);
+
+    /**
+     * In warm mode the camera keeps metering the scene while it's open, so auto-exposure and
+     * auto white balance are settled when an image is requested. It costs a low-resolution stream
+     * running all the time. Takes effect on the next {@link #openCamera(Context)}
+     *
+     * @param enabled true to keep the camera warm
+     */
+    void setWarmUpEnabled(boolean enabled);
+
+    void setWarmUpListener(WarmUpListener listener);
+
+    /**
+     * Sets how the size of taken images is chosen, the biggest supported size is taken by default.
+     * Takes effect on the next {@link #openCamera(Context)}
+     *
+     * @param policy policy, e.g. {@link PictureSizePolicy#maxMegapixels(float)}
+     */
+    void setPictureSizePolicy(PictureSizePolicy policy);
 }
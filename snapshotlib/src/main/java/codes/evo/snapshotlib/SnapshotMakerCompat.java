@@ -7,12 +7,34 @@ import codes.evo.snapshotlib.utils.BackgroundWorker;
 
 public class SnapshotMakerCompat {
 
+    private static volatile boolean sIsSyntheticCameraEnabled;
+
+    /**
+     * Makes {@link #get} return {@link SnapshotMakerSynthetic}, e.g. for load tests on a device without a camera
+     *
+     * @param enabled true to use the synthetic camera instead of the real one
+     */
+    public static void setSyntheticCameraEnabled(boolean enabled) {
+        sIsSyntheticCameraEnabled = enabled;
+    }
+
+    /**
+     * Camera callbacks are handled on {@link BackgroundWorker.Lane#CAMERA}
+     */
     public static SnapshotMaker get(Context context, BackgroundWorker backgroundWorker) {
+        return get(context, backgroundWorker, BackgroundWorker.Lane.CAMERA);
+    }
+
+    public static SnapshotMaker get(Context context, BackgroundWorker backgroundWorker,
+                                    BackgroundWorker.Lane cameraLane) {
 
+        if (sIsSyntheticCameraEnabled) {
+            return new SnapshotMakerSynthetic(backgroundWorker, cameraLane);
+        }
         if (!(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)) {
-            return new SnapshotMakerV1(context, backgroundWorker);
+            return new SnapshotMakerV1(context, backgroundWorker, cameraLane);
         } else {
-            return new SnapshotMakerV2(context, backgroundWorker);
+            return new SnapshotMakerV2(context, backgroundWorker, cameraLane);
         }
     }
 }
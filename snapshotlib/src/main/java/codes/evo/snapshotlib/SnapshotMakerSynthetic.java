@@ -0,0 +1,479 @@
+package codes.evo.snapshotlib;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import codes.evo.snapshotlib.utils.BackgroundWorker;
+import codes.evo.snapshotlib.utils.ByteArrayPool;
+import codes.evo.snapshotlib.utils.CaptureMetrics;
+import codes.evo.snapshotlib.utils.LocalFileStorage;
+
+/**
+ * Camera without hardware. Produces synthetic JPEG frames of a given size at a given rate,
+ * opening and capturing take as long as set and fail as often as set.
+ * Frames only have the JPEG start and end markers around random bytes, they are not meant to be decoded.
+ * Use it to load the storage and the listeners on devices and emulators without a camera
+ */
+public class SnapshotMakerSynthetic implements SnapshotMaker {
+    private static final String TAG = "SnapshotMakerSynthetic";
+
+    // Markers and the frame number
+    private static final int MIN_FRAME_LENGTH = 8;
+    private static final int DEFAULT_FRAME_LENGTH = 512 * 1024;
+    private static final PictureSize DEFAULT_PICTURE_SIZE = new PictureSize(1280, 960);
+
+    private final BackgroundWorker.Client mBgClient;
+    private final BackgroundWorker.Client mIoClient;
+    private final CaptureMetrics mMetrics = CaptureMetrics.getInstance();
+    private final Random mRandom = new Random();
+
+    private CameraListener mCameraListener;
+    private StateListener mStateListener;
+    private WarmUpListener mWarmUpListener;
+    private ImageLeaseListener mImageLeaseListener;
+    private volatile ByteArrayPool mByteArrayPool;
+    private SnapshotListener mCaptureToFileListener;
+
+    private PictureSize mPictureSize = DEFAULT_PICTURE_SIZE;
+    private int mFrameLength = DEFAULT_FRAME_LENGTH;
+    private long mFrameIntervalMillis;
+    private long mOpenLatencyMillis;
+    private long mCaptureLatencyMillis;
+    private float mOpenFailureRate;
+    private float mCaptureFailureRate;
+    private byte[] mFrameTemplate;
+
+    private CameraState mCurrentState = CameraState.CLOSE;
+    private final AtomicLong mNextRequestId = new AtomicLong(1);
+    private final ArrayDeque<PendingCapture> mRequestedCaptures = new ArrayDeque<>();
+    // Images are taken one by one, this one is being taken right now
+    private PendingCapture mCurrentCapture;
+    private int mFrameCount;
+    private long mNextFrameUptimeMillis;
+
+    private long mOpenStartNanos;
+    private boolean mIsRequestCloseCamera;
+    private boolean mIsOpening;
+
+    private final Runnable mOpenTask = new Runnable() {
+        @Override
+        public void run() {
+            mIsOpening = false;
+            if (mRandom.nextFloat() < mOpenFailureRate) {
+                String errMessage = "Camera failed to open : synthetic failure";
+                sendEventOnImageFailed(new CameraException(errMessage), errMessage);
+                failCaptures(mRequestedCaptures, "Camera was closed before the image was taken");
+                mIsRequestCloseCamera = false;
+                return;
+            }
+            mMetrics.recordSince(CaptureMetrics.Phase.OPEN, mOpenStartNanos);
+            mFrameTemplate = createFrameTemplate(mFrameLength);
+            mNextFrameUptimeMillis = SystemClock.uptimeMillis();
+
+            if (mCameraListener != null) {
+                mCameraListener.onCameraOpened();
+            }
+            if (mWarmUpListener != null) {
+                mWarmUpListener.onCaptureReady();
+            }
+            handleState(CameraState.OPEN);
+        }
+    };
+
+    private final Runnable mCaptureTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mCurrentState != CameraState.TAKE_IMAGE) {
+                return;
+            }
+            PendingCapture capture = mCurrentCapture;
+            mCurrentCapture = null;
+            mMetrics.recordSince(CaptureMetrics.Phase.SHUTTER, capture.getShutterStartNanos());
+            if (mRandom.nextFloat() < mCaptureFailureRate) {
+                String errMessage = "Image capture failed : synthetic failure";
+                Log.e(TAG, errMessage);
+                mMetrics.recordFailure(mCurrentState);
+                if (mCameraListener != null) {
+                    mCameraListener.onCaptureFailed(capture.getRequestId(), new CameraException(errMessage));
+                }
+            } else {
+                ByteArrayImageLease lease = new ByteArrayImageLease(nextFrame(),
+                        mPictureSize.getWidth(), mPictureSize.getHeight());
+                lease.setRequestId(capture.getRequestId());
+                lease.setCaptureRequestedNanos(capture.getShutterStartNanos());
+
+                long deliverStartNanos = System.nanoTime();
+                deliverImage(lease);
+                mMetrics.recordSince(CaptureMetrics.Phase.DELIVER, deliverStartNanos);
+            }
+
+            onCaptureDone();
+        }
+    };
+
+    public SnapshotMakerSynthetic(BackgroundWorker backgroundWorker) {
+        this(backgroundWorker, BackgroundWorker.Lane.CAMERA);
+    }
+
+    /**
+     * @param cameraLane lane which handles camera callbacks, taken images are written to files on the I/O lane
+     */
+    public SnapshotMakerSynthetic(BackgroundWorker backgroundWorker, BackgroundWorker.Lane cameraLane) {
+        mBgClient = backgroundWorker.getClient(cameraLane);
+        mIoClient = backgroundWorker.getClient(BackgroundWorker.Lane.IO);
+    }
+
+    /**
+     * @param pictureSize size reported by the leases of the frames
+     * @param frameLength length of every frame in bytes
+     */
+    public void setFrameSize(PictureSize pictureSize, int frameLength) {
+        if (frameLength < MIN_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Frame is too short : " + frameLength);
+        }
+        mPictureSize = pictureSize;
+        mFrameLength = frameLength;
+    }
+
+    /**
+     * @param framesPerSecond how many frames the camera delivers in a second at most, 0 for no limit
+     */
+    public void setFrameRate(float framesPerSecond) {
+        if (framesPerSecond < 0) {
+            throw new IllegalArgumentException("Frame rate must not be negative : " + framesPerSecond);
+        }
+        mFrameIntervalMillis = framesPerSecond > 0 ? (long) (1000 / framesPerSecond) : 0;
+    }
+
+    public void setOpenLatency(long millis) {
+        mOpenLatencyMillis = millis;
+    }
+
+    /**
+     * @param millis time from requesting an image until it's delivered
+     */
+    public void setCaptureLatency(long millis) {
+        mCaptureLatencyMillis = millis;
+    }
+
+    /**
+     * @param openFailureRate    share of opens which fail, from 0 to 1
+     * @param captureFailureRate share of captures which fail, from 0 to 1
+     */
+    public void setFailureRates(float openFailureRate, float captureFailureRate) {
+        mOpenFailureRate = openFailureRate;
+        mCaptureFailureRate = captureFailureRate;
+    }
+
+    /**
+     * Makes the failures repeat from run to run
+     */
+    public void setSeed(long seed) {
+        mRandom.setSeed(seed);
+    }
+
+    private void handleState(CameraState newState) {
+        if (mCurrentState == newState) {
+            return;
+        }
+
+        switch (newState) {
+            case OPEN:
+                if (mIsRequestCloseCamera) {
+                    setState(newState);
+                    onCloseCommand();
+                    return;
+                }
+                if (!mRequestedCaptures.isEmpty()) {
+                    setState(newState);
+                    handleState(CameraState.TAKE_IMAGE);
+                    return;
+                }
+                break;
+
+            case CLOSE:
+                Log.d(TAG, "Close camera");
+                mBgClient.removeCallbacks(mCaptureTask);
+                mFrameTemplate = null;
+                if (mCameraListener != null) {
+                    mCameraListener.onCameraClosed();
+                }
+                if (mCurrentCapture != null) {
+                    mRequestedCaptures.addFirst(mCurrentCapture);
+                    mCurrentCapture = null;
+                }
+                failCaptures(mRequestedCaptures, "Camera was closed before the image was taken");
+                mIsRequestCloseCamera = false;
+                break;
+
+            case TAKE_IMAGE:
+                if (mCurrentState != CameraState.OPEN) {
+                    return;
+                }
+                takeRequestedImage();
+                break;
+        }
+
+        setState(newState);
+    }
+
+    private void setState(CameraState newState) {
+        CameraState oldState = mCurrentState;
+        mCurrentState = newState;
+        if (oldState != newState && mStateListener != null) {
+            mStateListener.onStateChanged(oldState, newState);
+        }
+    }
+
+    /**
+     * Needs no permission, the context is not used
+     */
+    @Override
+    public void openCamera(@Nullable Context context) throws CameraException {
+        mBgClient.post(new Runnable() {
+            @Override
+            public void run() {
+                onOpenCommand();
+            }
+        });
+    }
+
+    @Override
+    public long takeImage() {
+        return takeBurst(1);
+    }
+
+    /**
+     * Images are taken one after another at the frame rate
+     */
+    @Override
+    public long takeBurst(final int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Count of images must be positive : " + count);
+        }
+        final long firstRequestId = mNextRequestId.getAndAdd(count);
+        mBgClient.post(new Runnable() {
+            @Override
+            public void run() {
+                onTakeCommand(firstRequestId, count);
+            }
+        });
+        return firstRequestId;
+    }
+
+    @Override
+    public void closeCamera() {
+        mBgClient.post(new Runnable() {
+            @Override
+            public void run() {
+                onCloseCommand();
+            }
+        });
+    }
+
+    private void onOpenCommand() {
+        if (mCurrentState != CameraState.CLOSE || mIsOpening) {
+            String errMessage = "Camera is already open";
+            sendEventOnImageFailed(new CameraException(errMessage), errMessage);
+            return;
+        }
+
+        Log.d(TAG, "Open camera");
+        mIsOpening = true;
+        mOpenStartNanos = System.nanoTime();
+        mBgClient.postDelayed(mOpenTask, mOpenLatencyMillis);
+    }
+
+    private void onTakeCommand(long firstRequestId, int count) {
+        for (int i = 0; i < count; i++) {
+            mRequestedCaptures.add(new PendingCapture(firstRequestId + i));
+        }
+        if (mCurrentState == CameraState.TAKE_IMAGE) {
+            return;
+        }
+        handleState(CameraState.TAKE_IMAGE);
+    }
+
+    private void onCloseCommand() {
+        if (mIsOpening) {
+            mBgClient.removeCallbacks(mOpenTask);
+            mIsOpening = false;
+            failCaptures(mRequestedCaptures, "Camera was closed before the image was taken");
+            return;
+        }
+        if (mCurrentState == CameraState.OPEN) {
+            handleState(CameraState.CLOSE);
+            return;
+        }
+        if (mCurrentState == CameraState.TAKE_IMAGE) {
+            failCaptures(mRequestedCaptures, "Camera was closed before the image was taken");
+            mIsRequestCloseCamera = true;
+        }
+    }
+
+    @Override
+    public void requestPermission(@Nullable Activity activity) {
+    }
+
+    @Override
+    public void setCameraListener(CameraListener listener) {
+        mCameraListener = listener;
+    }
+
+    @Override
+    public void setStateListener(StateListener listener) {
+        mStateListener = listener;
+    }
+
+    @Override
+    public void setImageLeaseListener(ImageLeaseListener listener) {
+        mImageLeaseListener = listener;
+    }
+
+    @Override
+    public void setByteArrayPool(@Nullable ByteArrayPool pool) {
+        mByteArrayPool = pool;
+    }
+
+    @Override
+    public void setCaptureToFileListener(SnapshotListener listener) {
+        mCaptureToFileListener = listener;
+    }
+
+    /**
+     * The synthetic camera is always warm, the warm up listener is notified as soon as it's open
+     */
+    @Override
+    public void setWarmUpEnabled(boolean enabled) {
+    }
+
+    @Override
+    public void setWarmUpListener(WarmUpListener listener) {
+        mWarmUpListener = listener;
+    }
+
+    /**
+     * The synthetic camera has only the size set by {@link #setFrameSize(PictureSize, int)}
+     */
+    @Override
+    public void setPictureSizePolicy(PictureSizePolicy policy) {
+    }
+
+    /**
+     * The frame is delivered after the capture latency, but not before the next slot of the frame rate
+     */
+    private void takeRequestedImage() {
+        mCurrentCapture = mRequestedCaptures.poll();
+        mCurrentCapture.setShutterStartNanos(System.nanoTime());
+
+        long now = SystemClock.uptimeMillis();
+        long frameUptimeMillis = Math.max(now + mCaptureLatencyMillis, mNextFrameUptimeMillis);
+        mNextFrameUptimeMillis = frameUptimeMillis + mFrameIntervalMillis;
+        mBgClient.postDelayed(mCaptureTask, frameUptimeMillis - now);
+    }
+
+    /**
+     * Every frame is a new array like the ones a camera hands over, the frame number is
+     * written after the start marker so that no two frames are the same
+     */
+    private byte[] nextFrame() {
+        byte[] frame = mFrameTemplate.clone();
+        int frameNumber = mFrameCount++;
+        for (int i = 0; i < 4; i++) {
+            frame[i + 2] = (byte) (frameNumber >>> (8 * i));
+        }
+        return frame;
+    }
+
+    private byte[] createFrameTemplate(int frameLength) {
+        byte[] frame = new byte[frameLength];
+        mRandom.nextBytes(frame);
+        // Start of image and end of image markers
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xD8;
+        frame[frameLength - 2] = (byte) 0xFF;
+        frame[frameLength - 1] = (byte) 0xD9;
+        return frame;
+    }
+
+    private void deliverImage(ImageLease lease) {
+        if (mCaptureToFileListener != null) {
+            saveImage(lease, mCaptureToFileListener);
+            return;
+        }
+        if (mImageLeaseListener != null) {
+            mImageLeaseListener.onImageLeased(lease);
+            return;
+        }
+        if (mCameraListener != null) {
+            ByteArrayPool pool = mByteArrayPool;
+            int length = lease.getSize();
+            byte[] bytes = pool != null ? lease.toByteArray(pool) : lease.toByteArray();
+            mCameraListener.onImageTaken(lease.getRequestId(), bytes, length);
+        }
+        lease.release();
+    }
+
+    private void saveImage(final ImageLease lease, final SnapshotListener listener) {
+        final String name = LocalFileStorage.generateSnapshotName(lease.getRequestId());
+        mIoClient.post(new Runnable() {
+            @Override
+            public void run() {
+                saveImage(lease, name, listener);
+            }
+        });
+    }
+
+    private void saveImage(ImageLease lease, String name, SnapshotListener listener) {
+        long captureRequestedNanos = lease.getCaptureRequestedNanos();
+        long saveStartNanos = System.nanoTime();
+        try {
+            byte[] bytes = lease.toByteArray();
+            LocalFileStorage.saveMediaBytes(bytes, bytes.length, name, lease.getWidth(), lease.getHeight(), 0);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Unable to save image " + name, e);
+            mMetrics.recordSaveFailure();
+            listener.onImageSaveFailed(name, e);
+            return;
+        } finally {
+            lease.release();
+        }
+        mMetrics.recordSince(CaptureMetrics.Phase.SAVE, saveStartNanos);
+        mMetrics.recordSince(CaptureMetrics.Phase.SHUTTER_TO_DISK, captureRequestedNanos);
+        listener.onImageSaved(name, LocalFileStorage.getSavedPhotoPath(name));
+    }
+
+    private void onCaptureDone() {
+        if (!mRequestedCaptures.isEmpty()) {
+            takeRequestedImage();
+        } else {
+            handleState(CameraState.OPEN);
+        }
+    }
+
+    private void failCaptures(Collection<PendingCapture> captures, String errMessage) {
+        for (PendingCapture capture : captures) {
+            if (mCameraListener != null) {
+                mCameraListener.onCaptureFailed(capture.getRequestId(), new CameraException(errMessage));
+            }
+        }
+        captures.clear();
+    }
+
+    private void sendEventOnImageFailed(Exception e, String errMessage) {
+        Log.e(TAG, errMessage, e);
+        mMetrics.recordFailure(mCurrentState);
+        if (mCameraListener != null) {
+            mCameraListener.onImageFailed(e, errMessage);
+        }
+    }
+}
@@ -3,40 +3,86 @@ package codes.evo.snapshotlib;
 import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.content.res.Configuration;
+import android.graphics.ImageFormat;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.graphics.YuvImage;
 import android.hardware.Camera;
-import android.hardware.SensorManager;
 import android.os.Environment;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.Gravity;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.WindowManager;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import codes.evo.snapshotlib.utils.BackgroundWorker;
-import codes.evo.snapshotlib.utils.OrientationHelper;
+import codes.evo.snapshotlib.utils.ByteArrayPool;
+import codes.evo.snapshotlib.utils.CameraCapabilityCache;
+import codes.evo.snapshotlib.utils.CaptureMetrics;
+import codes.evo.snapshotlib.utils.LocalFileStorage;
+import codes.evo.snapshotlib.utils.OrientationProvider;
 
 @SuppressWarnings("deprecation")
 public class SnapshotMakerV1 implements SnapshotMaker {
     private static final String TAG = "SnapshotMakerV1";
+    private static final int NO_ORIENTATION = -1;
+    private static final int FAST_GRAB_BUFFER_COUNT = 3;
+    private static final int FAST_GRAB_JPEG_QUALITY = 90;
 
     private final Context mContext;
     private final BackgroundWorker.Client mBgClient;
+    private final BackgroundWorker.Client mIoClient;
+    private final BackgroundWorker.Client mComputeClient;
     private final WindowManager mWindowManager;
-    private final OrientationHelper mOrientationHelper;
+    private final OrientationProvider mOrientationProvider;
+    private final CameraCapabilityCache mCapabilityCache;
+    private final CaptureMetrics mMetrics = CaptureMetrics.getInstance();
 
     private Camera mCamera;
+    private CameraCapabilities mCameraCapabilities;
     private SurfaceView mSurfaceView;
     private SurfaceHolder mSurfaceHolder;
+    private SurfaceTexture mPreviewTexture;
     private CameraListener mCameraListener;
+    private StateListener mStateListener;
+    private WarmUpListener mWarmUpListener;
+    private ImageLeaseListener mImageLeaseListener;
+    private volatile ByteArrayPool mByteArrayPool;
+    private SnapshotListener mCaptureToFileListener;
 
     private CameraState mCurrentState = CameraState.CLOSE;
-    private boolean mIsRequestTakeImage;
+    private final AtomicLong mNextRequestId = new AtomicLong(1);
+    private final ArrayDeque<PendingCapture> mRequestedCaptures = new ArrayDeque<>();
+    // Images are taken one by one, this one is being taken right now
+    private PendingCapture mCurrentCapture;
+    // Fast grab frames which are being compressed on the compute lane, in the order of captures
+    private final ArrayDeque<PendingCapture> mCompressingCaptures = new ArrayDeque<>();
+    private volatile PictureSizePolicy mPictureSizePolicy = PictureSizePolicy.largest();
+    private PictureSize mPictureSize;
+    // Parameters are read from the camera once it's open, then only changes are pushed to it
+    private Camera.Parameters mParameters;
+    private int mAppliedJpegOrientation = NO_ORIENTATION;
+    private boolean mIsFastGrabEnabled;
+    private boolean mIsHeadlessPreviewEnabled;
+    // Fast grab mode of the open camera, images are preview frames of this size
+    private boolean mIsFastGrab;
+    private PictureSize mPreviewSize;
+
+    private long mOpenStartNanos;
     private boolean mIsRequestCloseCamera;
+    private boolean mIsOpening;
 
     private final SurfaceHolder.Callback mSurfaceHolderCallback = new SurfaceHolder.Callback() {
         @Override
@@ -44,44 +90,12 @@ public class SnapshotMakerV1 implements SnapshotMaker {
             mBgClient.post(new Runnable() {
                 @Override
                 public void run() {
-                    int cameraCount = Camera.getNumberOfCameras();
-
-                    for (int camId = 0; camId < cameraCount; camId++) {
-                        Camera.CameraInfo info = new Camera.CameraInfo();
-                        Camera.getCameraInfo(camId, info);
-
-                        if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-                            try {
-                                mCamera = Camera.open(camId);
-                            } catch (RuntimeException e) {
-                                sendEventOnImageFailed(e, "Camera failed to open : " + e.getLocalizedMessage());
-                                handleState(CameraState.CLOSE);
-                            }
-                        }
-                    }
-                    if (mCamera != null) {
-                        try {
-                            mCamera.setPreviewDisplay(mSurfaceHolder);
-                            mCamera.setPreviewCallback(null);
-                            mCamera.startPreview();
-
-                            if (mOrientationHelper.canDetectOrientation()) {
-                                Log.d(TAG, "Can detect orientation");
-                                mOrientationHelper.enable();
-                            }
-                            if (mCameraListener != null) {
-                                mCameraListener.onCameraOpened();
-                            }
-                            handleState(CameraState.OPEN);
-
-                        } catch (IOException e) {
-                            sendEventOnImageFailed(e, "Surface is unavailable or unsuitable. ");
-                            handleState(CameraState.CLOSE);
-                        }
-                    } else {
-                        destroySurface();
-                        Log.e(TAG, "Unable to access the camera");
+                    if (!mIsOpening) {
+                        // The camera was closed before the surface came up
+                        return;
                     }
+                    mIsOpening = false;
+                    openFrontCamera();
                 }
             });
         }
@@ -106,18 +120,67 @@ public class SnapshotMakerV1 implements SnapshotMaker {
                 handleState(CameraState.CLOSE);
                 return;
             }
-            if (mCameraListener != null) {
-                mCameraListener.onImageTaken(data);
+            PendingCapture capture = mCurrentCapture;
+            mCurrentCapture = null;
+            mMetrics.recordSince(CaptureMetrics.Phase.SHUTTER, capture.getShutterStartNanos());
+            ByteArrayImageLease lease = new ByteArrayImageLease(data,
+                    mPictureSize.getWidth(), mPictureSize.getHeight());
+            lease.setRequestId(capture.getRequestId());
+            lease.setOrientation(mAppliedJpegOrientation);
+            lease.setCaptureRequestedNanos(capture.getShutterStartNanos());
+
+            long deliverStartNanos = System.nanoTime();
+            deliverImage(lease);
+            mMetrics.recordSince(CaptureMetrics.Phase.DELIVER, deliverStartNanos);
+            // takePicture stops the preview, it must be running again before the next shot
+            camera.startPreview();
+            onCaptureDone();
+        }
+    };
+
+    /**
+     * Grabs the next preview frame for the current capture, compression runs on the compute lane
+     * while the camera already waits for the frame of the next capture
+     */
+    private final Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            if (mCurrentCapture == null) {
+                camera.addCallbackBuffer(data);
+                return;
             }
-            handleState(CameraState.OPEN);
+            PendingCapture capture = mCurrentCapture;
+            mCurrentCapture = null;
+            mMetrics.recordSince(CaptureMetrics.Phase.SHUTTER, capture.getShutterStartNanos());
+            // The capture is in flight until its JPEG is delivered, the next one already waits for a frame
+            mCompressingCaptures.add(capture);
+            compressPreviewFrame(data, camera, capture);
+            onCaptureDone();
         }
     };
 
     public SnapshotMakerV1(Context context, BackgroundWorker backgroundWorker) {
+        this(context, backgroundWorker, BackgroundWorker.Lane.CAMERA);
+    }
+
+    /**
+     * @param cameraLane lane which handles camera callbacks, taken images are written to files on the I/O lane
+     */
+    public SnapshotMakerV1(Context context, BackgroundWorker backgroundWorker, BackgroundWorker.Lane cameraLane) {
         mContext = context;
-        mBgClient = backgroundWorker.getDefault();
+        mBgClient = backgroundWorker.getClient(cameraLane);
+        mIoClient = backgroundWorker.getClient(BackgroundWorker.Lane.IO);
+        mComputeClient = backgroundWorker.getClient(BackgroundWorker.Lane.COMPUTE);
         mWindowManager = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
-        mOrientationHelper = new OrientationHelper(mContext, SensorManager.SENSOR_DELAY_NORMAL);
+        mOrientationProvider = new OrientationProvider(mContext, mBgClient.getHandler());
+        mCapabilityCache = new CameraCapabilityCache(mContext, "v1");
+        // The cache file is read on the I/O lane while the app gets ready to open the camera
+        mIoClient.post(new Runnable() {
+            @Override
+            public void run() {
+                mCapabilityCache.load();
+            }
+        });
     }
 
     private void handleState(CameraState newState) {
@@ -128,82 +191,166 @@ public class SnapshotMakerV1 implements SnapshotMaker {
         switch (newState) {
             case OPEN:
                 if (mIsRequestCloseCamera) {
-                    mCurrentState = newState;
-                    closeCamera();
+                    setState(newState);
+                    onCloseCommand();
                     return;
                 }
-                if (mIsRequestTakeImage) {
-                    takeImage();
+                if (!mRequestedCaptures.isEmpty()) {
+                    setState(newState);
+                    handleState(CameraState.TAKE_IMAGE);
+                    return;
                 }
                 break;
 
             case CLOSE:
                 Log.d(TAG, "Close camera");
-                if (mOrientationHelper.canDetectOrientation()) {
-                    Log.d(TAG, "Cannot detect orientation");
-                    mOrientationHelper.disable();
-                }
+                mOrientationProvider.stop();
                 destroySurface();
                 if (mCamera != null) {
                     mCamera.stopPreview();
                     mCamera.release();
                     mCamera = null;
+                    mParameters = null;
                     if (mCameraListener != null) {
                         mCameraListener.onCameraClosed();
                     }
                 }
-                mIsRequestTakeImage = false;
+                if (mCurrentCapture != null) {
+                    mRequestedCaptures.addFirst(mCurrentCapture);
+                    mCurrentCapture = null;
+                }
+                failCaptures(mCompressingCaptures, "Camera was closed before the image was taken");
+                failCaptures(mRequestedCaptures, "Camera was closed before the image was taken");
                 mIsRequestCloseCamera = false;
                 break;
 
             case TAKE_IMAGE:
                 if (mCurrentState != CameraState.OPEN) {
-                    mIsRequestTakeImage = true;
                     return;
                 }
-
-                mIsRequestTakeImage = false;
-                mBgClient.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        setupCameraParameters();
-                        mCamera.takePicture(null, null, null, mCameraPictureCallback);
-                    }
-                });
+                takeRequestedImage();
                 break;
         }
 
+        setState(newState);
+    }
+
+    private void setState(CameraState newState) {
+        CameraState oldState = mCurrentState;
         mCurrentState = newState;
+        if (oldState != newState && mStateListener != null) {
+            mStateListener.onStateChanged(oldState, newState);
+        }
     }
 
+    /**
+     * A missing front-facing camera is reported through {@link CameraListener#onImageFailed},
+     * the cameras are listed on the worker thread
+     */
     @Override
     public void openCamera(@Nullable Context context) throws CameraException {
-        if (!mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT)) {
-            throw new CameraException("Not found a front-facing camera");
+        mBgClient.post(new Runnable() {
+            @Override
+            public void run() {
+                onOpenCommand();
+            }
+        });
+    }
+
+    @Override
+    public long takeImage() {
+        return takeBurst(1);
+    }
+
+    /**
+     * Camera API v1 has no burst capture, images are taken one after another as soon as
+     * the previous picture is delivered
+     */
+    @Override
+    public long takeBurst(final int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Count of images must be positive : " + count);
         }
-        if (mCurrentState != CameraState.CLOSE) {
-            throw new CameraException("Camera is already open");
+        final long firstRequestId = mNextRequestId.getAndAdd(count);
+        mBgClient.post(new Runnable() {
+            @Override
+            public void run() {
+                onTakeCommand(firstRequestId, count);
+            }
+        });
+        return firstRequestId;
+    }
+
+    @Override
+    public void closeCamera() {
+        mBgClient.post(new Runnable() {
+            @Override
+            public void run() {
+                onCloseCommand();
+            }
+        });
+    }
+
+    /**
+     * The surface is added on the worker thread, so its callbacks come there and it can be removed there.
+     * A headless preview needs no window, the camera is opened right away
+     */
+    private void onOpenCommand() {
+        if (mCurrentState != CameraState.CLOSE || mIsOpening) {
+            String errMessage = "Camera is already open";
+            sendEventOnImageFailed(new CameraException(errMessage), errMessage);
+            return;
+        }
+
+        if (!mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT)) {
+            onFrontCameraNotFound();
+            return;
         }
 
         Log.d(TAG, "Open camera");
+        mOpenStartNanos = System.nanoTime();
+        if (mIsHeadlessPreviewEnabled) {
+            // The texture is never drawn, it only gives the preview a place to go
+            mPreviewTexture = new SurfaceTexture(0);
+            openFrontCamera();
+            return;
+        }
+        mIsOpening = true;
         mSurfaceView = new SurfaceView(mContext);
         mWindowManager.addView(mSurfaceView, initLayoutParams());
         mSurfaceHolder = mSurfaceView.getHolder();
         mSurfaceHolder.addCallback(mSurfaceHolderCallback);
     }
 
-    @Override
-    public void takeImage() {
+    private void onTakeCommand(long firstRequestId, int count) {
+        mOrientationProvider.refresh();
+        for (int i = 0; i < count; i++) {
+            mRequestedCaptures.add(new PendingCapture(firstRequestId + i));
+        }
+        if (mCurrentState == CameraState.TAKE_IMAGE) {
+            if (mCurrentCapture == null) {
+                // Only fast grab frames are being compressed, the camera is free for the next image
+                onCaptureDone();
+            }
+            return;
+        }
         handleState(CameraState.TAKE_IMAGE);
     }
 
-    @Override
-    public void closeCamera() {
+    private void onCloseCommand() {
+        if (mIsOpening) {
+            mIsOpening = false;
+            failCaptures(mRequestedCaptures, "Camera was closed before the image was taken");
+            destroySurface();
+            return;
+        }
         if (mCurrentState == CameraState.OPEN) {
             handleState(CameraState.CLOSE);
             return;
         }
         if (mCurrentState == CameraState.TAKE_IMAGE) {
+            // The picture in progress is delivered, the rest of a burst is dropped
+            failCaptures(mRequestedCaptures, "Camera was closed before the image was taken");
             mIsRequestCloseCamera = true;
         }
     }
@@ -217,6 +364,199 @@ public class SnapshotMakerV1 implements SnapshotMaker {
         mCameraListener = listener;
     }
 
+    @Override
+    public void setStateListener(StateListener listener) {
+        mStateListener = listener;
+    }
+
+    @Override
+    public void setImageLeaseListener(ImageLeaseListener listener) {
+        mImageLeaseListener = listener;
+    }
+
+    @Override
+    public void setByteArrayPool(@Nullable ByteArrayPool pool) {
+        mByteArrayPool = pool;
+    }
+
+    @Override
+    public void setCaptureToFileListener(SnapshotListener listener) {
+        mCaptureToFileListener = listener;
+    }
+
+    /**
+     * Camera API v1 always runs the preview while the camera is open, so it's always warm.
+     * Camera API v1 doesn't report the state of auto-exposure, the warm up listener is notified
+     * as soon as the preview is started
+     */
+    @Override
+    public void setWarmUpEnabled(boolean enabled) {
+    }
+
+    @Override
+    public void setWarmUpListener(WarmUpListener listener) {
+        mWarmUpListener = listener;
+    }
+
+    @Override
+    public void setPictureSizePolicy(PictureSizePolicy policy) {
+        mPictureSizePolicy = policy;
+    }
+
+    /**
+     * @param maxAgeMillis how long a sampled device orientation is used before the sensor is asked again
+     * @see OrientationProvider#setMaxAge(long)
+     */
+    public void setOrientationMaxAge(long maxAgeMillis) {
+        mOrientationProvider.setMaxAge(maxAgeMillis);
+    }
+
+    /**
+     * Takes the orientation of images from the rotation of the display instead of the sensor,
+     * for apps whose UI rotates with the device
+     *
+     * @see OrientationProvider#setDisplayRotationEnabled(boolean)
+     */
+    public void setDisplayRotationEnabled(boolean enabled) {
+        mOrientationProvider.setDisplayRotationEnabled(enabled);
+    }
+
+    /**
+     * Takes images from the preview stream instead of {@link Camera#takePicture}, which runs the whole
+     * still pipeline on every shot. Frames are compressed to JPEG on the compute lane, so it suits
+     * high rates of small images. The picture size policy chooses from the preview sizes then, and images
+     * come in the orientation of the sensor. Takes effect on the next {@link #openCamera(Context)}
+     */
+    public void setFastGrabEnabled(boolean enabled) {
+        mIsFastGrabEnabled = enabled;
+    }
+
+    /**
+     * Binds the preview to an offscreen {@link SurfaceTexture} instead of a 1x1 overlay window, so opening
+     * the camera doesn't wait for the UI thread and the app needs no overlay permission.
+     * Some old devices don't run the preview without a visible surface, so it's off by default.
+     * Takes effect on the next {@link #openCamera(Context)}
+     */
+    public void setHeadlessPreviewEnabled(boolean enabled) {
+        mIsHeadlessPreviewEnabled = enabled;
+    }
+
+    private void takeRequestedImage() {
+        mCurrentCapture = mRequestedCaptures.poll();
+        if (mIsFastGrab) {
+            // The next preview frame is the image
+            mCurrentCapture.setShutterStartNanos(System.nanoTime());
+            return;
+        }
+        mBgClient.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCurrentCapture == null) {
+                    // The camera was closed in the meantime, the capture has already been reported
+                    return;
+                }
+                mCurrentCapture.setShutterStartNanos(System.nanoTime());
+                try {
+                    updateJpegOrientation();
+                    mCamera.takePicture(null, null, null, mCameraPictureCallback);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to take picture", e);
+                    mMetrics.recordFailure(mCurrentState);
+                    PendingCapture capture = mCurrentCapture;
+                    mCurrentCapture = null;
+                    if (mCameraListener != null) {
+                        mCameraListener.onCaptureFailed(capture.getRequestId(), e);
+                    }
+                    onCaptureDone();
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens the camera on the worker thread once the preview has somewhere to go
+     */
+    private void openFrontCamera() {
+        CameraCapabilities frontCamera = findFrontCamera();
+        if (frontCamera == null) {
+            onFrontCameraNotFound();
+            return;
+        }
+        try {
+            mCamera = Camera.open(Integer.parseInt(frontCamera.getCameraId()));
+            mCameraCapabilities = frontCamera;
+            mMetrics.recordSince(CaptureMetrics.Phase.OPEN, mOpenStartNanos);
+        } catch (RuntimeException e) {
+            // The cached camera may be gone, the cameras are listed again on the next open
+            mCapabilityCache.invalidate();
+            sendEventOnImageFailed(e, "Camera failed to open : " + e.getLocalizedMessage());
+        }
+        if (mCamera != null) {
+            long configureStartNanos = System.nanoTime();
+            mParameters = mCamera.getParameters();
+            readOutputSizesIfNeeded();
+            mPictureSize = mPictureSizePolicy.select(mCameraCapabilities.getJpegSizes());
+            Log.d(TAG, "Capture size: " + mPictureSize);
+            selectFastGrabSize();
+            try {
+                setupCameraParameters();
+                if (mPreviewTexture != null) {
+                    mCamera.setPreviewTexture(mPreviewTexture);
+                } else {
+                    mCamera.setPreviewDisplay(mSurfaceHolder);
+                }
+                if (mIsFastGrab) {
+                    startFastGrab();
+                } else {
+                    mCamera.setPreviewCallback(null);
+                }
+                mCamera.startPreview();
+                mMetrics.recordSince(CaptureMetrics.Phase.CONFIGURE, configureStartNanos);
+
+                // The first image needs the orientation, the sensor answers while the camera starts
+                mOrientationProvider.refresh();
+                if (mCameraListener != null) {
+                    mCameraListener.onCameraOpened();
+                }
+                // The preview runs all the time the camera is open, so 3A is already warming up
+                if (mWarmUpListener != null) {
+                    mWarmUpListener.onCaptureReady();
+                }
+                handleState(CameraState.OPEN);
+
+            } catch (IOException e) {
+                sendEventOnImageFailed(e, "Surface is unavailable or unsuitable. ");
+                onOpenFailed();
+            } catch (RuntimeException e) {
+                sendEventOnImageFailed(e, "Camera rejected the parameters : " + e.getLocalizedMessage());
+                onOpenFailed();
+            }
+        } else {
+            onOpenFailed();
+            Log.e(TAG, "Unable to access the camera");
+        }
+    }
+
+    private void onFrontCameraNotFound() {
+        String errMessage = "Not found a front-facing camera";
+        sendEventOnImageFailed(new CameraException(errMessage), errMessage);
+        onOpenFailed();
+    }
+
+    /**
+     * The state is still CLOSE while the camera is opening, so handleState has nothing to close
+     * and everything is released here
+     */
+    private void onOpenFailed() {
+        if (mCamera != null) {
+            mCamera.release();
+            mCamera = null;
+            mParameters = null;
+        }
+        destroySurface();
+        failCaptures(mRequestedCaptures, "Camera was closed before the image was taken");
+    }
+
     private void destroySurface() {
         Log.d(TAG, "Destroy surface");
 
@@ -226,6 +566,10 @@ public class SnapshotMakerV1 implements SnapshotMaker {
             mSurfaceHolder = null;
             mSurfaceView = null;
         }
+        if (mPreviewTexture != null) {
+            mPreviewTexture.release();
+            mPreviewTexture = null;
+        }
     }
 
     private WindowManager.LayoutParams initLayoutParams() {
@@ -245,58 +589,267 @@ public class SnapshotMakerV1 implements SnapshotMaker {
         return params;
     }
 
+    /**
+     * The picture size is one of the supported sizes as it is, the JPEG is turned by the rotation.
+     * Called once the camera is open, the size doesn't change until it's closed
+     */
     private void setupCameraParameters() {
-        Camera.Parameters parameters = mCamera.getParameters();
-        Camera.Size pictureSize = getBiggestPictureSize(parameters);
-
-        int deviceOrientation = mOrientationHelper.getDeviceOrientation();
-        int jpegOrientation = getJpegOrientation(deviceOrientation);
-        parameters.setRotation(jpegOrientation);
-
-        int orientation = mContext.getResources().getConfiguration().orientation;
-        if (pictureSize != null) {
-            if (orientation == Configuration.ORIENTATION_PORTRAIT) {
-                parameters.setPictureSize(pictureSize.width, pictureSize.height);
-            } else if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-                parameters.setPictureSize(pictureSize.height, pictureSize.width);
+        mAppliedJpegOrientation = getJpegOrientation(mOrientationProvider.getDeviceOrientation());
+        mParameters.setRotation(mAppliedJpegOrientation);
+        mParameters.setPictureSize(mPictureSize.getWidth(), mPictureSize.getHeight());
+        if (mIsFastGrab) {
+            mParameters.setPreviewSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+            mParameters.setPreviewFormat(ImageFormat.NV21);
+        }
+        mCamera.setParameters(mParameters);
+    }
+
+    private void selectFastGrabSize() {
+        List<PictureSize> previewSizes = mCameraCapabilities.getOutputSizes(ImageFormat.NV21);
+        mIsFastGrab = mIsFastGrabEnabled && !previewSizes.isEmpty();
+        if (mIsFastGrab) {
+            mPreviewSize = mPictureSizePolicy.select(previewSizes);
+            Log.d(TAG, "Fast grab size: " + mPreviewSize);
+        }
+    }
+
+    /**
+     * Preview frames only come into the buffers given to the camera, a frame which is being compressed
+     * holds its buffer, so a few of them keep the preview going
+     */
+    private void startFastGrab() {
+        int bufferSize = mPreviewSize.getWidth() * mPreviewSize.getHeight()
+                * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        for (int i = 0; i < FAST_GRAB_BUFFER_COUNT; i++) {
+            mCamera.addCallbackBuffer(new byte[bufferSize]);
+        }
+        mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+    }
+
+    private void compressPreviewFrame(final byte[] frame, final Camera camera, final PendingCapture capture) {
+        final PictureSize size = mPreviewSize;
+        mComputeClient.post(new Runnable() {
+            @Override
+            public void run() {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(frame.length / 4);
+                YuvImage yuvImage = new YuvImage(frame, ImageFormat.NV21, size.getWidth(), size.getHeight(), null);
+                final boolean isCompressed = yuvImage.compressToJpeg(
+                        new Rect(0, 0, size.getWidth(), size.getHeight()), FAST_GRAB_JPEG_QUALITY, out);
+                final byte[] jpeg = out.toByteArray();
+                mBgClient.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The buffer belongs to the camera which filled it, a closed camera doesn't need it
+                        if (camera == mCamera) {
+                            camera.addCallbackBuffer(frame);
+                        }
+                        onPreviewFrameCompressed(capture, isCompressed ? jpeg : null, size);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onPreviewFrameCompressed(PendingCapture capture, @Nullable byte[] jpeg, PictureSize size) {
+        if (!mCompressingCaptures.remove(capture)) {
+            // The camera was closed in the meantime, the capture has already been reported
+            return;
+        }
+        if (jpeg == null) {
+            String errMessage = "Unable to compress the preview frame";
+            Log.e(TAG, errMessage);
+            mMetrics.recordFailure(mCurrentState);
+            if (mCameraListener != null) {
+                mCameraListener.onCaptureFailed(capture.getRequestId(), new CameraException(errMessage));
             }
+        } else {
+            ByteArrayImageLease lease = new ByteArrayImageLease(jpeg, size.getWidth(), size.getHeight());
+            lease.setRequestId(capture.getRequestId());
+            lease.setCaptureRequestedNanos(capture.getShutterStartNanos());
+
+            long deliverStartNanos = System.nanoTime();
+            deliverImage(lease);
+            mMetrics.recordSince(CaptureMetrics.Phase.DELIVER, deliverStartNanos);
         }
-        mCamera.setParameters(parameters);
+        onCaptureDone();
+    }
+
+    /**
+     * Pushes the parameters to the camera only when the rotation moves to another multiple of 90 degrees,
+     * reading and writing them costs a lot on old devices
+     */
+    private void updateJpegOrientation() {
+        int jpegOrientation = getJpegOrientation(mOrientationProvider.getDeviceOrientation());
+        if (jpegOrientation == mAppliedJpegOrientation) {
+            return;
+        }
+        mParameters.setRotation(jpegOrientation);
+        mCamera.setParameters(mParameters);
+        mAppliedJpegOrientation = jpegOrientation;
     }
 
     private int getJpegOrientation(int deviceOrientation) {
         if (deviceOrientation == android.view.OrientationEventListener.ORIENTATION_UNKNOWN) {
             return 0;
         }
-        Camera.CameraInfo info = new Camera.CameraInfo();
-        android.hardware.Camera.getCameraInfo(Camera.CameraInfo.CAMERA_FACING_FRONT, info);
         deviceOrientation = (deviceOrientation + 45) / 90 * 90;
-        int cameraRotationOffset = info.orientation;
+        int cameraRotationOffset = mCameraCapabilities.getSensorOrientation();
 
         int jpegOrientation = (cameraRotationOffset - deviceOrientation + 360) % 360;
         return jpegOrientation;
     }
 
-    private Camera.Size getBiggestPictureSize(Camera.Parameters parameters) {
-        Camera.Size result = null;
+    /**
+     * Lists the cameras once, then they come from the cache. Output sizes can only be read from
+     * an open camera, so they are added by {@link #readOutputSizesIfNeeded()}
+     */
+    @Nullable
+    private CameraCapabilities findFrontCamera() {
+        if (!mCapabilityCache.isComplete()) {
+            List<CameraCapabilities> capabilities = new ArrayList<>();
+            int cameraCount = Camera.getNumberOfCameras();
+
+            for (int camId = 0; camId < cameraCount; camId++) {
+                Camera.CameraInfo info = new Camera.CameraInfo();
+                Camera.getCameraInfo(camId, info);
+                capabilities.add(new CameraCapabilities(String.valueOf(camId), info.facing,
+                        info.orientation, new SparseArray<List<PictureSize>>()));
+            }
+            mCapabilityCache.putAll(capabilities);
+            saveCapabilityCache();
+        }
 
-        for (Camera.Size size : parameters.getSupportedPictureSizes()) {
-            if (result == null) {
-                result = size;
-            } else {
-                int resultArea = result.width * result.height;
-                int newArea = size.width * size.height;
+        for (CameraCapabilities capabilities : mCapabilityCache.getAll()) {
+            if (capabilities.getLensFacing() == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+                return capabilities;
+            }
+        }
+        return null;
+    }
 
-                if (newArea > resultArea) {
-                    result = size;
-                }
+    /**
+     * Picture sizes are stored for every supported picture format and preview sizes for NV21,
+     * the preview format every device supports
+     */
+    private void readOutputSizesIfNeeded() {
+        if (mCameraCapabilities.getOutputFormats().length > 0) {
+            return;
+        }
+
+        Camera.Parameters parameters = mParameters;
+        SparseArray<List<PictureSize>> outputSizes = new SparseArray<>();
+        List<PictureSize> pictureSizes = toPictureSizes(parameters.getSupportedPictureSizes());
+        for (Integer format : parameters.getSupportedPictureFormats()) {
+            outputSizes.put(format, pictureSizes);
+        }
+        outputSizes.put(ImageFormat.NV21, toPictureSizes(parameters.getSupportedPreviewSizes()));
+
+        mCameraCapabilities = new CameraCapabilities(mCameraCapabilities.getCameraId(),
+                mCameraCapabilities.getLensFacing(), mCameraCapabilities.getSensorOrientation(), outputSizes);
+        mCapabilityCache.put(mCameraCapabilities);
+        saveCapabilityCache();
+    }
+
+    private void saveCapabilityCache() {
+        mIoClient.post(new Runnable() {
+            @Override
+            public void run() {
+                mCapabilityCache.save();
+            }
+        });
+    }
+
+    private static List<PictureSize> toPictureSizes(@Nullable List<Camera.Size> sizes) {
+        if (sizes == null) {
+            return Collections.emptyList();
+        }
+        List<PictureSize> pictureSizes = new ArrayList<>(sizes.size());
+        for (Camera.Size size : sizes) {
+            pictureSizes.add(new PictureSize(size.width, size.height));
+        }
+        return Collections.unmodifiableList(pictureSizes);
+    }
+
+    private void deliverImage(ImageLease lease) {
+        if (mCaptureToFileListener != null) {
+            saveImage(lease, mCaptureToFileListener);
+            return;
+        }
+        if (mImageLeaseListener != null) {
+            mImageLeaseListener.onImageLeased(lease);
+            return;
+        }
+        if (mCameraListener != null) {
+            ByteArrayPool pool = mByteArrayPool;
+            int length = lease.getSize();
+            byte[] bytes = pool != null ? lease.toByteArray(pool) : lease.toByteArray();
+            mCameraListener.onImageTaken(lease.getRequestId(), bytes, length);
+        }
+        lease.release();
+    }
+
+    /**
+     * Writes the image to a file on the I/O lane and gives it back to the camera as soon as the write returns
+     */
+    private void saveImage(final ImageLease lease, final SnapshotListener listener) {
+        // Several images of a burst can be taken within the same second
+        final String name = LocalFileStorage.generateSnapshotName(lease.getRequestId());
+        mIoClient.post(new Runnable() {
+            @Override
+            public void run() {
+                saveImage(lease, name, listener);
+            }
+        });
+    }
+
+    private void saveImage(ImageLease lease, String name, SnapshotListener listener) {
+        long captureRequestedNanos = lease.getCaptureRequestedNanos();
+        long saveStartNanos = System.nanoTime();
+        try {
+            // The camera has handed over an array, a stream writes it without the temporary direct buffer of a channel
+            byte[] bytes = lease.toByteArray();
+            LocalFileStorage.saveMediaBytes(bytes, bytes.length, name,
+                    lease.getWidth(), lease.getHeight(), lease.getOrientation());
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Unable to save image " + name, e);
+            mMetrics.recordSaveFailure();
+            listener.onImageSaveFailed(name, e);
+            return;
+        } finally {
+            lease.release();
+        }
+        mMetrics.recordSince(CaptureMetrics.Phase.SAVE, saveStartNanos);
+        mMetrics.recordSince(CaptureMetrics.Phase.SHUTTER_TO_DISK, captureRequestedNanos);
+        listener.onImageSaved(name, LocalFileStorage.getSavedPhotoPath(name));
+    }
+
+    /**
+     * The camera is back to OPEN, and a pending close goes on, only when no image is being taken or compressed
+     */
+    private void onCaptureDone() {
+        if (mCurrentCapture != null) {
+            // The next image is already waiting for its frame
+            return;
+        }
+        if (!mRequestedCaptures.isEmpty()) {
+            takeRequestedImage();
+        } else if (mCompressingCaptures.isEmpty()) {
+            handleState(CameraState.OPEN);
+        }
+    }
+
+    private void failCaptures(Collection<PendingCapture> captures, String errMessage) {
+        for (PendingCapture capture : captures) {
+            if (mCameraListener != null) {
+                mCameraListener.onCaptureFailed(capture.getRequestId(), new CameraException(errMessage));
             }
         }
-        return result;
+        captures.clear();
     }
 
     private void sendEventOnImageFailed(Exception e, String errMessage) {
         Log.e(TAG, errMessage, e);
+        mMetrics.recordFailure(mCurrentState);
         mCameraListener.onImageFailed(e, errMessage);
     }
 }
@@ -5,56 +5,129 @@ import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.ImageFormat;
-import android.hardware.SensorManager;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Environment;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.util.Size;
+import android.util.SparseArray;
 import android.view.Surface;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import codes.evo.snapshotlib.utils.BackgroundWorker;
-import codes.evo.snapshotlib.utils.OrientationHelper;
+import codes.evo.snapshotlib.utils.ByteArrayPool;
+import codes.evo.snapshotlib.utils.CameraCapabilityCache;
+import codes.evo.snapshotlib.utils.CaptureMetrics;
+import codes.evo.snapshotlib.utils.ImageUtils;
+import codes.evo.snapshotlib.utils.LocalFileStorage;
+import codes.evo.snapshotlib.utils.OrientationProvider;
 import codes.evo.snapshotlib.utils.PermissionUtils;
 
 @TargetApi(21)
 public class SnapshotMakerV2 implements SnapshotMaker {
     private static final String TAG = "SnapshotMakerV2";
     private static final int PERMISSION_REQUEST_CODE = 177;
+    public static final int DEFAULT_IMAGE_RING_SIZE = 4;
+    private static final int WARM_UP_MIN_AREA = 320 * 240;
+    private static final PictureSize DEFAULT_ANALYSIS_SIZE = new PictureSize(640, 480);
+    private static final long THUMBNAIL_TIMEOUT_MILLIS = 500;
+    // How long a failed capture which still has captured an image waits for it
+    private static final long FAILED_CAPTURE_IMAGE_TIMEOUT_MILLIS = 1000;
+
+    public interface FrameAnalyzer {
+
+        /**
+         * Called on {@link BackgroundWorker.Lane#COMPUTE} with the latest frame of the analysis stream.
+         * Frames which come while the analyzer is busy are dropped, only the newest one waits for it
+         *
+         * @param image YUV_420_888 frame, it's closed as soon as the method returns
+         */
+        @WorkerThread
+        void analyze(Image image);
+    }
 
     private final BackgroundWorker.Client mBgClient;
+    private final BackgroundWorker.Client mIoClient;
+    private final BackgroundWorker.Client mComputeClient;
     private final CameraManager mCameraManager;
-    private final OrientationHelper mOrientationHelper;
+    private final OrientationProvider mOrientationProvider;
+    private final CameraCapabilityCache mCapabilityCache;
+    private final CaptureMetrics mMetrics = CaptureMetrics.getInstance();
 
     private ImageReader mImageReader;
+    private ImageReader mWarmUpReader;
+    private ImageReader mThumbnailReader;
+    private ImageReader mAnalysisReader;
     private CameraDevice mCamera;
     private CameraCaptureSession mCaptureSession;
+    private CameraCapabilities mCameraCapabilities;
     private CameraListener mCameraListener;
+    private StateListener mStateListener;
+    private ImageLeaseListener mImageLeaseListener;
+    private volatile ByteArrayPool mByteArrayPool;
+    private SnapshotListener mCaptureToFileListener;
+    private WarmUpListener mWarmUpListener;
+    private volatile FrameAnalyzer mFrameAnalyzer;
 
     private CameraState mCurrentState = CameraState.CLOSE;
-    private boolean mIsRequestTakeImage;
+    private int mImageRingSize = DEFAULT_IMAGE_RING_SIZE;
+    private volatile PictureSizePolicy mPictureSizePolicy = PictureSizePolicy.largest();
+    private volatile PictureSize mThumbnailSize;
+    private PictureSize mAnalysisSize = DEFAULT_ANALYSIS_SIZE;
+    private int mDiscardedImages;
+    private int mLeasedImages;
     private boolean mIsRequestCloseCamera;
+    private boolean mIsOpening;
+    private volatile boolean mIsWarmUpEnabled;
+    private boolean mIsCaptureReady;
+
+    private long mOpenStartNanos;
+    private long mConfigureStartNanos;
+    private final AtomicLong mNextRequestId = new AtomicLong(1);
+    // Requested images which the image ring has no room for yet
+    private final ArrayDeque<PendingCapture> mRequestedCaptures = new ArrayDeque<>();
+    // Captures submitted to the session, in the order of requests
+    private final ArrayDeque<PendingCapture> mInFlightCaptures = new ArrayDeque<>();
+    // Both streams deliver frames in the order of requests, but either of them may come first.
+    // Whatever comes first waits for its pair here, keyed by the sensor timestamp
+    private final LongSparseArray<MediaImageLease> mPendingLeases = new LongSparseArray<>();
+    private final LongSparseArray<ImageLease> mPendingThumbnails = new LongSparseArray<>();
+    // Readers of closed cameras with the count of their images which are still leased.
+    // Leased images read from the buffers of the reader, so it's closed with the last of them
+    private final Map<ImageReader, Integer> mRetiredReaders = new HashMap<>();
 
     private final CameraDevice.StateCallback mCameraStateCallback =
             new CameraDevice.StateCallback() {
                 @Override
                 public void onOpened(@NonNull CameraDevice camera) {
                     Log.d(TAG, "Successfully opened camera");
+                    mMetrics.recordSince(CaptureMetrics.Phase.OPEN, mOpenStartNanos);
+                    mConfigureStartNanos = System.nanoTime();
                     mCamera = camera;
                     try {
                         createCaptureSession();
@@ -85,24 +158,34 @@ public class SnapshotMakerV2 implements SnapshotMaker {
                 @Override
                 public void onConfigured(@NonNull CameraCaptureSession session) {
                     Log.d(TAG, "Finished configuring camera outputs");
+                    mMetrics.recordSince(CaptureMetrics.Phase.CONFIGURE, mConfigureStartNanos);
                     mCaptureSession = session;
                     try {
-                        CaptureRequest.Builder requester = mCamera
-                                .createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-                        requester.addTarget(mImageReader.getSurface());
-                        mCaptureSession.capture(requester.build(), null, null);
+                        if (mAnalysisReader != null) {
+                            startRepeatingRequest(mAnalysisReader.getSurface());
+                        } else if (mWarmUpReader != null) {
+                            startRepeatingRequest(mWarmUpReader.getSurface());
+                        } else {
+                            CaptureRequest.Builder requester = mCamera
+                                    .createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                            requester.addTarget(mImageReader.getSurface());
+                            // The callback counts the frame down if it's lost, so it can't swallow a real image
+                            mCaptureSession.capture(requester.build(), mStillCaptureCallback, mBgClient.getHandler());
+                            // The frame of this capture only primes the pipeline and must not reach the listener
+                            mDiscardedImages++;
+                        }
                     } catch (CameraAccessException e) {
                         sendEventOnImageFailed(e, "Failed to get actual capture request. ");
                         handleState(CameraState.CLOSE);
+                        return;
                     }
-                    if (mOrientationHelper.canDetectOrientation()) {
-                        Log.d(TAG, "Can detect orientation");
-                        mOrientationHelper.enable();
-                    }
+                    // The first image needs the orientation, the sensor answers while the camera starts
+                    mOrientationProvider.refresh();
 
                     if (mCameraListener != null) {
                         mCameraListener.onCameraOpened();
                     }
+                    mIsOpening = false;
                     handleState(CameraState.OPEN);
                 }
 
@@ -124,44 +207,265 @@ public class SnapshotMakerV2 implements SnapshotMaker {
                         handleState(CameraState.CLOSE);
                         return;
                     }
-                    if (mCameraListener != null) {
-                        Image image = reader.acquireLatestImage();
-                        mCameraListener.onImageTaken(imageToByteArray(image));
+                    // Images are taken in order, a burst must not skip frames as acquireLatestImage does
+                    Image image = reader.acquireNextImage();
+                    if (image == null) {
+                        return;
+                    }
+                    if (mDiscardedImages > 0) {
+                        mDiscardedImages--;
                         image.close();
+                        return;
                     }
-                    handleState(CameraState.OPEN);
+                    PendingCapture capture = takeInFlightCapture(image.getTimestamp());
+                    if (capture == null) {
+                        Log.w(TAG, "Image of an unknown request");
+                        image.close();
+                        return;
+                    }
+                    mMetrics.recordSince(CaptureMetrics.Phase.SHUTTER, capture.getShutterStartNanos());
+
+                    MediaImageLease lease = new MediaImageLease(image, reader, mImageLeaseReleaseListener);
+                    lease.setRequestId(capture.getRequestId());
+                    lease.setOrientation(capture.getJpegOrientation());
+                    lease.setCaptureRequestedNanos(capture.getShutterStartNanos());
+
+                    if (mThumbnailReader != null) {
+                        long timestamp = image.getTimestamp();
+                        ImageLease thumbnail = takePendingThumbnail(timestamp);
+                        if (thumbnail == null && !capture.isThumbnailLost()) {
+                            waitForThumbnail(timestamp, lease);
+                            return;
+                        }
+                        lease.setThumbnail(thumbnail);
+                    }
+                    onImageReady(lease);
+                }
+            };
+
+    private final ImageReader.OnImageAvailableListener mThumbnailListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image = reader.acquireNextImage();
+                    if (image == null) {
+                        return;
+                    }
+                    long timestamp = image.getTimestamp();
+                    ImageLease thumbnail;
+                    try {
+                        // A small copy frees the camera buffer at once, so thumbnails never hold the stream
+                        thumbnail = new ByteArrayImageLease(ImageUtils.toNv21(image),
+                                image.getWidth(), image.getHeight());
+                    } finally {
+                        image.close();
+                    }
+
+                    // Images which are older than this frame will never get their thumbnails
+                    while (mPendingLeases.size() > 0 && mPendingLeases.keyAt(0) < timestamp) {
+                        MediaImageLease lease = mPendingLeases.valueAt(0);
+                        mPendingLeases.removeAt(0);
+                        onImageReady(lease);
+                    }
+                    MediaImageLease lease = mPendingLeases.get(timestamp);
+                    if (lease != null) {
+                        mPendingLeases.remove(timestamp);
+                        lease.setThumbnail(thumbnail);
+                        onImageReady(lease);
+                    } else {
+                        mPendingThumbnails.put(timestamp, thumbnail);
+                    }
+                }
+            };
+
+    private final ImageReader.OnImageAvailableListener mWarmUpFrameListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    // Frames of the warm up stream only feed 3A, they are dropped right away
+                    Image image = reader.acquireLatestImage();
+                    if (image != null) {
+                        image.close();
+                    }
+                }
+            };
+
+    private final ImageReader.OnImageAvailableListener mAnalysisFrameListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    // Skips the frames which came while the analyzer was busy.
+                    // The reader is closed on this lane too, so it's open for the whole callback
+                    Image image = reader.acquireLatestImage();
+                    if (image == null) {
+                        return;
+                    }
+                    try {
+                        FrameAnalyzer analyzer = mFrameAnalyzer;
+                        if (analyzer != null) {
+                            analyzer.analyze(image);
+                        }
+                    } finally {
+                        image.close();
+                    }
+                }
+            };
+
+    private final CameraCaptureSession.CaptureCallback mStillCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                             @NonNull CaptureRequest request,
+                                             long timestamp, long frameNumber) {
+                    // The image of the capture has the same timestamp
+                    PendingCapture capture = (PendingCapture) request.getTag();
+                    if (capture != null) {
+                        capture.setSensorTimestamp(timestamp);
+                    }
+                }
+
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                            @NonNull CaptureRequest request,
+                                            @NonNull CaptureFailure failure) {
+                    final PendingCapture capture = (PendingCapture) request.getTag();
+                    if (capture == null) {
+                        // The frame which primes the pipeline won't come
+                        if (!failure.wasImageCaptured() && mDiscardedImages > 0) {
+                            mDiscardedImages--;
+                        }
+                        return;
+                    }
+                    final String errMessage = "Capture failed, reason : " + failure.getReason();
+                    if (!failure.wasImageCaptured()) {
+                        failInFlightCapture(capture, errMessage);
+                        return;
+                    }
+                    // An image which was captured anyway is still delivered. Its buffer may be lost without
+                    // a callback before API 24, so it's only waited for a while
+                    mBgClient.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            failInFlightCapture(capture, errMessage);
+                        }
+                    }, FAILED_CAPTURE_IMAGE_TIMEOUT_MILLIS);
+                }
+
+                @Override
+                public void onCaptureBufferLost(@NonNull CameraCaptureSession session,
+                                                @NonNull CaptureRequest request,
+                                                @NonNull Surface target, long frameNumber) {
+                    PendingCapture capture = (PendingCapture) request.getTag();
+                    if (mThumbnailReader != null && target == mThumbnailReader.getSurface()) {
+                        if (capture != null) {
+                            // The image doesn't wait for the thumbnail, whether it has come or not
+                            capture.setThumbnailLost(true);
+                            flushPendingLease(capture.getSensorTimestamp());
+                        }
+                        return;
+                    }
+                    if (mImageReader == null || target != mImageReader.getSurface()) {
+                        return;
+                    }
+                    if (capture == null) {
+                        if (mDiscardedImages > 0) {
+                            mDiscardedImages--;
+                        }
+                        return;
+                    }
+                    failInFlightCapture(capture, "Image buffer of the capture was lost");
+                }
+            };
+
+    private final CameraCaptureSession.CaptureCallback mWarmUpCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                               @NonNull CaptureRequest request,
+                                               @NonNull TotalCaptureResult result) {
+                    boolean isReady = is3AConverged(result);
+                    if (isReady == mIsCaptureReady) {
+                        return;
+                    }
+                    mIsCaptureReady = isReady;
+                    if (isReady) {
+                        Log.d(TAG, "3A converged");
+                        if (mWarmUpListener != null) {
+                            mWarmUpListener.onCaptureReady();
+                        }
+                    }
+                }
+            };
+
+    private final MediaImageLease.OnReleaseListener mImageLeaseReleaseListener =
+            new MediaImageLease.OnReleaseListener() {
+                @Override
+                public void onLeaseReleased(final MediaImageLease lease) {
+                    // Leases can be released on any thread, the counters are owned by the worker
+                    mBgClient.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (lease.getReader() != mImageReader) {
+                                onRetiredImageReleased(lease.getReader());
+                                return;
+                            }
+                            if (mLeasedImages > 0) {
+                                mLeasedImages--;
+                            }
+                            if (mCurrentState == CameraState.TAKE_IMAGE && !mRequestedCaptures.isEmpty()) {
+                                submitRequestedImages();
+                            }
+                        }
+                    });
                 }
             };
 
     public SnapshotMakerV2(Context context, BackgroundWorker backgroundWorker) {
-        mBgClient = backgroundWorker.getDefault();
+        this(context, backgroundWorker, BackgroundWorker.Lane.CAMERA);
+    }
+
+    /**
+     * @param cameraLane lane which handles camera callbacks, taken images are written to files on the I/O lane
+     */
+    public SnapshotMakerV2(Context context, BackgroundWorker backgroundWorker, BackgroundWorker.Lane cameraLane) {
+        mBgClient = backgroundWorker.getClient(cameraLane);
+        mIoClient = backgroundWorker.getClient(BackgroundWorker.Lane.IO);
+        mComputeClient = backgroundWorker.getClient(BackgroundWorker.Lane.COMPUTE);
         mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
-        mOrientationHelper = new OrientationHelper(context, SensorManager.SENSOR_DELAY_NORMAL);
+        mOrientationProvider = new OrientationProvider(context, mBgClient.getHandler());
+        mCapabilityCache = new CameraCapabilityCache(context, "v2");
+        // The cache file is read on the I/O lane while the app gets ready to open the camera
+        mIoClient.post(new Runnable() {
+            @Override
+            public void run() {
+                mCapabilityCache.load();
+            }
+        });
     }
 
     private void handleState(CameraState newState) {
-        if (mCurrentState == newState) {
+        // A camera which is being opened is still closed, but it may already hold the device and the readers
+        if (mCurrentState == newState && !mIsOpening) {
             return;
         }
 
         switch (newState) {
             case OPEN:
                 if (mIsRequestCloseCamera) {
-                    mCurrentState = newState;
-                    closeCamera();
+                    setState(newState);
+                    onCloseCommand();
                     return;
                 }
-                if (mIsRequestTakeImage) {
-                    takeImage();
+                if (!mRequestedCaptures.isEmpty()) {
+                    setState(newState);
+                    handleState(CameraState.TAKE_IMAGE);
+                    return;
                 }
                 break;
 
             case CLOSE:
                 Log.d(TAG, "Close camera");
-                if (mOrientationHelper.canDetectOrientation()) {
-                    Log.d(TAG, "Cannot detect orientation");
-                    mOrientationHelper.disable();
-                }
+                mOrientationProvider.stop();
                 if (mCaptureSession != null) {
                     try {
                         mCaptureSession.abortCaptures();
@@ -179,110 +483,220 @@ public class SnapshotMakerV2 implements SnapshotMaker {
                         mCameraListener.onCameraClosed();
                     }
                 }
+                String errMessage = "Camera was closed before the image was taken";
+                // Their releases reach the worker after the reader is retired, so they are counted with it
+                int outstandingImages = mLeasedImages + mPendingLeases.size();
+                for (int i = 0; i < mPendingLeases.size(); i++) {
+                    MediaImageLease lease = mPendingLeases.valueAt(i);
+                    lease.release();
+                    if (mCameraListener != null) {
+                        mCameraListener.onCaptureFailed(lease.getRequestId(), new CameraException(errMessage));
+                    }
+                }
+                mPendingLeases.clear();
+                mPendingThumbnails.clear();
                 if (mImageReader != null) {
-                    mImageReader.close();
+                    if (outstandingImages > 0) {
+                        // Listeners and the I/O lane may still read the leased images
+                        mRetiredReaders.put(mImageReader, outstandingImages);
+                    } else {
+                        mImageReader.close();
+                    }
                     mImageReader = null;
                 }
-                mIsRequestTakeImage = false;
+                if (mWarmUpReader != null) {
+                    mWarmUpReader.close();
+                    mWarmUpReader = null;
+                }
+                if (mThumbnailReader != null) {
+                    mThumbnailReader.close();
+                    mThumbnailReader = null;
+                }
+                if (mAnalysisReader != null) {
+                    closeAnalysisReader(mAnalysisReader);
+                    mAnalysisReader = null;
+                }
+                mIsCaptureReady = false;
+                failCaptures(mInFlightCaptures, errMessage);
+                failCaptures(mRequestedCaptures, errMessage);
+                mDiscardedImages = 0;
+                mLeasedImages = 0;
                 mIsRequestCloseCamera = false;
+                mIsOpening = false;
                 break;
 
             case TAKE_IMAGE:
                 if (mCurrentState != CameraState.OPEN) {
-                    mIsRequestTakeImage = true;
                     return;
                 }
-
-                mIsRequestTakeImage = false;
-                try {
-                    mImageReader.setOnImageAvailableListener(mImageCaptureListener, mBgClient.getHandler());
-                    CaptureRequest.Builder requester =
-                            mCamera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-                    requester.addTarget(mImageReader.getSurface());
-                    requester.set(CaptureRequest.JPEG_ORIENTATION,
-                            getJpegOrientation(mOrientationHelper.getDeviceOrientation()));
-
-                    if (mCaptureSession == null) {
-                        throw new CameraException("Session has been closed. " +
-                                "Failed to file actual capture request");
-                    }
-                    mCaptureSession.capture(requester.build(), null, null);
-
-                } catch (CameraAccessException | CameraException e) {
-                    sendEventOnImageFailed(e, "Failed to get actual capture request. ");
-                    handleState(CameraState.CLOSE);
-                }
-                break;
+                setState(newState);
+                submitRequestedImages();
+                return;
         }
 
+        setState(newState);
+    }
+
+    private void setState(CameraState newState) {
+        CameraState oldState = mCurrentState;
         mCurrentState = newState;
+        if (oldState != newState && mStateListener != null) {
+            mStateListener.onStateChanged(oldState, newState);
+        }
     }
 
+    /**
+     * A missing front-facing camera is reported through {@link CameraListener#onImageFailed},
+     * the cameras are listed on the worker thread
+     */
     @Override
     public void openCamera(Context context) throws CameraException {
         if (!PermissionUtils.hasPermission(context, Manifest.permission.CAMERA)) {
             Log.e(TAG, "You have not permission : " + Manifest.permission.CAMERA);
             return;
         }
+        mBgClient.post(new Runnable() {
+            @Override
+            public void run() {
+                onOpenCommand();
+            }
+        });
+    }
 
-        if (mCurrentState != CameraState.CLOSE) {
-            throw new CameraException("Camera is already open");
+    private void onOpenCommand() {
+        if (mCurrentState != CameraState.CLOSE || mIsOpening) {
+            String errMessage = "Camera is already open";
+            sendEventOnImageFailed(new CameraException(errMessage), errMessage);
+            return;
         }
 
         Log.d(TAG, "Open camera");
-        String frontCameraId = null;
+        mIsOpening = true;
+        mOpenStartNanos = System.nanoTime();
         try {
-            for (String cameraId : mCameraManager.getCameraIdList()) {
-                CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraId);
-                Integer feature = characteristics.get(CameraCharacteristics.LENS_FACING);
-                if (feature == null || feature != CameraCharacteristics.LENS_FACING_FRONT) {
+            CameraCapabilities frontCamera = null;
+            for (CameraCapabilities capabilities : getCameraCapabilities()) {
+                if (capabilities.getLensFacing() != CameraCharacteristics.LENS_FACING_FRONT) {
                     continue;
                 }
 
                 Log.d(TAG, "Found a front-facing camera");
-                frontCameraId = cameraId;
-
-                StreamConfigurationMap streamCfgMap = characteristics
-                        .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-
-                if (streamCfgMap == null) {
+                if (capabilities.getJpegSizes().isEmpty()) {
                     // skip strange cameras
                     continue;
                 }
-
-                Size largestSize = Collections.max(Arrays.asList(
-                        streamCfgMap.getOutputSizes(ImageFormat.JPEG)), new CompareSizesByArea());
-
-                Log.d(TAG, "Capture size: " + largestSize);
-                mImageReader = ImageReader.newInstance(largestSize.getWidth(),
-                        largestSize.getHeight(), ImageFormat.JPEG, 2);
+                frontCamera = capabilities;
                 break;
             }
 
-            if (frontCameraId != null) {
-                mCameraManager.openCamera(frontCameraId, mCameraStateCallback, mBgClient.getHandler());
-            } else {
-                handleState(CameraState.CLOSE);
+            if (frontCamera == null) {
                 throw new CameraException("Not found a front-facing camera");
             }
-        } catch (CameraAccessException e) {
+            mCameraCapabilities = frontCamera;
+
+            PictureSize captureSize = mPictureSizePolicy.select(frontCamera.getJpegSizes());
+            Log.d(TAG, "Capture size: " + captureSize);
+            mImageReader = ImageReader.newInstance(captureSize.getWidth(),
+                    captureSize.getHeight(), ImageFormat.JPEG, mImageRingSize);
+            mImageReader.setOnImageAvailableListener(mImageCaptureListener, mBgClient.getHandler());
+
+            List<PictureSize> yuvSizes = frontCamera.getOutputSizes(ImageFormat.YUV_420_888);
+            if (mFrameAnalyzer != null && !yuvSizes.isEmpty()) {
+                PictureSize analysisSize = PictureSizePolicy.atLeast(mAnalysisSize.getWidth(),
+                        mAnalysisSize.getHeight()).select(yuvSizes);
+                Log.d(TAG, "Analysis size: " + analysisSize);
+                // One image for the analyzer and one for the newest frame, older frames are dropped
+                mAnalysisReader = ImageReader.newInstance(analysisSize.getWidth(),
+                        analysisSize.getHeight(), ImageFormat.YUV_420_888, 2);
+                mAnalysisReader.setOnImageAvailableListener(mAnalysisFrameListener, mComputeClient.getHandler());
+            } else if (mIsWarmUpEnabled) {
+                PictureSize warmUpSize = getWarmUpSize(yuvSizes);
+                Log.d(TAG, "Warm up size: " + warmUpSize);
+                mWarmUpReader = ImageReader.newInstance(warmUpSize.getWidth(),
+                        warmUpSize.getHeight(), ImageFormat.YUV_420_888, 2);
+                mWarmUpReader.setOnImageAvailableListener(mWarmUpFrameListener, mBgClient.getHandler());
+            }
+
+            // Read once, the size may be changed on another thread in the meantime
+            PictureSize requestedThumbnailSize = mThumbnailSize;
+            if (requestedThumbnailSize != null && !yuvSizes.isEmpty()) {
+                PictureSize thumbnailSize = PictureSizePolicy.atLeast(requestedThumbnailSize.getWidth(),
+                        requestedThumbnailSize.getHeight()).select(yuvSizes);
+                Log.d(TAG, "Thumbnail size: " + thumbnailSize);
+                mThumbnailReader = ImageReader.newInstance(thumbnailSize.getWidth(),
+                        thumbnailSize.getHeight(), ImageFormat.YUV_420_888, 2);
+                mThumbnailReader.setOnImageAvailableListener(mThumbnailListener, mBgClient.getHandler());
+            }
+
+            mCameraManager.openCamera(frontCamera.getCameraId(), mCameraStateCallback, mBgClient.getHandler());
+
+        } catch (CameraAccessException | IllegalArgumentException e) {
+            // The cached camera may be gone, the cameras are listed again on the next open
+            mCapabilityCache.invalidate();
             sendEventOnImageFailed(e, "Unable to list cameras or open the front camera. ");
             handleState(CameraState.CLOSE);
+        } catch (CameraException e) {
+            sendEventOnImageFailed(e, e.getMessage());
+            handleState(CameraState.CLOSE);
         }
     }
 
     @Override
-    public void takeImage() {
-        handleState(CameraState.TAKE_IMAGE);
+    public long takeImage() {
+        return takeBurst(1);
+    }
+
+    @Override
+    public long takeBurst(final int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Count of images must be positive : " + count);
+        }
+        final long firstRequestId = mNextRequestId.getAndAdd(count);
+        mBgClient.post(new Runnable() {
+            @Override
+            public void run() {
+                onTakeCommand(firstRequestId, count);
+            }
+        });
+        return firstRequestId;
     }
 
     @Override
     public void closeCamera() {
+        mBgClient.post(new Runnable() {
+            @Override
+            public void run() {
+                onCloseCommand();
+            }
+        });
+    }
+
+    private void onTakeCommand(long firstRequestId, int count) {
+        mOrientationProvider.refresh();
+        for (int i = 0; i < count; i++) {
+            mRequestedCaptures.add(new PendingCapture(firstRequestId + i));
+        }
+        if (mCurrentState == CameraState.TAKE_IMAGE) {
+            // The rest is submitted as soon as the image ring has room for it
+            return;
+        }
+        handleState(CameraState.TAKE_IMAGE);
+    }
+
+    private void onCloseCommand() {
+        if (mIsOpening) {
+            // The device can't be given back in the middle of opening, it's closed as soon as it's open
+            failCaptures(mRequestedCaptures, "Camera was closed before the image was taken");
+            mIsRequestCloseCamera = true;
+            return;
+        }
         if (mCurrentState == CameraState.OPEN) {
             handleState(CameraState.CLOSE);
             return;
         }
         if (mCurrentState == CameraState.TAKE_IMAGE) {
+            // Images already submitted to the session are delivered, the rest of a burst is dropped
+            failCaptures(mRequestedCaptures, "Camera was closed before the image was taken");
             mIsRequestCloseCamera = true;
         }
     }
@@ -306,10 +720,124 @@ public class SnapshotMakerV2 implements SnapshotMaker {
         mCameraListener = listener;
     }
 
+    @Override
+    public void setStateListener(StateListener listener) {
+        mStateListener = listener;
+    }
+
+    @Override
+    public void setImageLeaseListener(ImageLeaseListener listener) {
+        mImageLeaseListener = listener;
+    }
+
+    @Override
+    public void setByteArrayPool(@Nullable ByteArrayPool pool) {
+        mByteArrayPool = pool;
+    }
+
+    @Override
+    public void setCaptureToFileListener(SnapshotListener listener) {
+        mCaptureToFileListener = listener;
+    }
+
+    @Override
+    public void setWarmUpEnabled(boolean enabled) {
+        mIsWarmUpEnabled = enabled;
+    }
+
+    @Override
+    public void setWarmUpListener(WarmUpListener listener) {
+        mWarmUpListener = listener;
+    }
+
+    @Override
+    public void setPictureSizePolicy(PictureSizePolicy policy) {
+        mPictureSizePolicy = policy;
+    }
+
+    /**
+     * @param maxAgeMillis how long a sampled device orientation is used before the sensor is asked again
+     * @see OrientationProvider#setMaxAge(long)
+     */
+    public void setOrientationMaxAge(long maxAgeMillis) {
+        mOrientationProvider.setMaxAge(maxAgeMillis);
+    }
+
+    /**
+     * Takes the orientation of images from the rotation of the display instead of the sensor,
+     * for apps whose UI rotates with the device
+     *
+     * @see OrientationProvider#setDisplayRotationEnabled(boolean)
+     */
+    public void setDisplayRotationEnabled(boolean enabled) {
+        mOrientationProvider.setDisplayRotationEnabled(enabled);
+    }
+
+    /**
+     * @return true if the camera runs in warm mode and 3A has settled
+     */
+    public boolean isCaptureReady() {
+        return mIsCaptureReady;
+    }
+
+    /**
+     * Streams YUV frames to the analyzer while the camera is open, with no JPEG encoding on the way.
+     * The analysis stream also keeps the camera warm, so warm mode doesn't add a stream of its own.
+     * Takes effect on the next {@link #openCamera(Context)}
+     *
+     * @param analyzer analyzer or null to turn the stream off
+     */
+    public void setFrameAnalyzer(@Nullable FrameAnalyzer analyzer) {
+        mFrameAnalyzer = analyzer;
+    }
+
+    /**
+     * @param size size of analysis frames, the smallest supported size which covers it is used
+     */
+    public void setAnalysisSize(PictureSize size) {
+        mAnalysisSize = size;
+    }
+
+    /**
+     * Adds a low-resolution YUV stream to every capture, its frame comes with the image as
+     * {@link ImageLease#getThumbnail()}, so a thumbnail needs no JPEG decoding. The smallest supported size
+     * which covers the given one is used. Thumbnails are only delivered to {@link ImageLeaseListener}.
+     * Together with warm mode it takes two YUV streams and a JPEG one, which LEGACY devices may not support.
+     * Takes effect on the next {@link #openCamera(Context)}
+     *
+     * @param size size of thumbnails or null to turn them off
+     */
+    public void setThumbnailSize(@Nullable PictureSize size) {
+        mThumbnailSize = size;
+    }
+
+    /**
+     * Sets how many images the ImageReader can hold at once. It bounds how many captures of a burst
+     * are submitted to the session at the same time, so the sensor never waits for a free buffer.
+     * Takes effect on the next {@link #openCamera(Context)}
+     *
+     * @param size count of images, at least 2
+     */
+    public void setImageRingSize(int size) {
+        if (size < 2) {
+            throw new IllegalArgumentException("Image ring must hold at least 2 images : " + size);
+        }
+        mImageRingSize = size;
+    }
+
     private void createCaptureSession() throws CameraException {
         if (mImageReader != null) {
             List<Surface> outputs = new ArrayList<>();
             outputs.add(mImageReader.getSurface());
+            if (mWarmUpReader != null) {
+                outputs.add(mWarmUpReader.getSurface());
+            }
+            if (mAnalysisReader != null) {
+                outputs.add(mAnalysisReader.getSurface());
+            }
+            if (mThumbnailReader != null) {
+                outputs.add(mThumbnailReader.getSurface());
+            }
 
             try {
                 mCamera.createCaptureSession(outputs, mCaptureSessionListener, mBgClient.getHandler());
@@ -323,27 +851,326 @@ public class SnapshotMakerV2 implements SnapshotMaker {
         }
     }
 
-    private byte[] imageToByteArray(Image image) {
-        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-        byte[] snapshotBytes = new byte[buffer.remaining()];
-        buffer.get(snapshotBytes);
-        return snapshotBytes;
+    /**
+     * Runs a repeating low-resolution request, so 3A keeps metering the scene between captures.
+     * Still captures share the state of 3A with it and start already converged
+     *
+     * @param target surface of the warm up or the analysis stream
+     */
+    private void startRepeatingRequest(Surface target) throws CameraAccessException {
+        CaptureRequest.Builder requester = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+        requester.addTarget(target);
+        requester.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
+        requester.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+        requester.set(CaptureRequest.CONTROL_AWB_MODE, CaptureRequest.CONTROL_AWB_MODE_AUTO);
+        // The stream isn't shown to anybody, don't spend ISP time on it
+        requester.set(CaptureRequest.NOISE_REDUCTION_MODE, CaptureRequest.NOISE_REDUCTION_MODE_FAST);
+        requester.set(CaptureRequest.EDGE_MODE, CaptureRequest.EDGE_MODE_FAST);
+
+        mIsCaptureReady = false;
+        mCaptureSession.setRepeatingRequest(requester.build(), mWarmUpCaptureCallback, mBgClient.getHandler());
+    }
+
+    private static boolean is3AConverged(CaptureResult result) {
+        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        Integer awbState = result.get(CaptureResult.CONTROL_AWB_STATE);
+        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+
+        // A missing state means the device doesn't run this routine at all
+        boolean isAeReady = aeState == null
+                || aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED
+                || aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED
+                || aeState == CaptureResult.CONTROL_AE_STATE_LOCKED;
+        boolean isAwbReady = awbState == null
+                || awbState == CaptureResult.CONTROL_AWB_STATE_CONVERGED
+                || awbState == CaptureResult.CONTROL_AWB_STATE_LOCKED;
+        boolean isAfReady = afState == null
+                || (afState != CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN
+                && afState != CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN);
+
+        return isAeReady && isAwbReady && isAfReady;
+    }
+
+    /**
+     * @return the smallest size which still gives 3A enough pixels to meter the scene
+     */
+    private static PictureSize getWarmUpSize(List<PictureSize> sizes) {
+        List<PictureSize> suitableSizes = new ArrayList<>();
+        for (PictureSize size : sizes) {
+            if (size.getWidth() * size.getHeight() >= WARM_UP_MIN_AREA) {
+                suitableSizes.add(size);
+            }
+        }
+        if (suitableSizes.isEmpty()) {
+            return Collections.max(sizes, new CompareSizesByArea());
+        }
+        return Collections.min(suitableSizes, new CompareSizesByArea());
+    }
+
+    private void onImageReady(MediaImageLease lease) {
+        mLeasedImages++;
+
+        long deliverStartNanos = System.nanoTime();
+        deliverImage(lease);
+        mMetrics.recordSince(CaptureMetrics.Phase.DELIVER, deliverStartNanos);
+        onCaptureDone();
+    }
+
+    /**
+     * The analyzer reads frames on the compute lane, so the reader is closed there after the frame
+     * in analysis and the callbacks already on the way. No new callbacks come once the listener is removed
+     */
+    private void closeAnalysisReader(final ImageReader reader) {
+        reader.setOnImageAvailableListener(null, null);
+        mComputeClient.post(new Runnable() {
+            @Override
+            public void run() {
+                reader.close();
+            }
+        });
+    }
+
+    /**
+     * Closes the reader of a closed camera once its last leased image is released
+     */
+    private void onRetiredImageReleased(ImageReader reader) {
+        Integer leasedImages = mRetiredReaders.get(reader);
+        if (leasedImages == null) {
+            // The reader had no image out when it was retired, so it's closed already
+            return;
+        }
+        if (leasedImages > 1) {
+            mRetiredReaders.put(reader, leasedImages - 1);
+        } else {
+            mRetiredReaders.remove(reader);
+            reader.close();
+        }
+    }
+
+    private void onCaptureDone() {
+        if (!mRequestedCaptures.isEmpty()) {
+            submitRequestedImages();
+        } else if (mInFlightCaptures.isEmpty() && mPendingLeases.size() == 0) {
+            handleState(CameraState.OPEN);
+        }
+    }
+
+    /**
+     * Reports a capture whose image won't come, unless it has already been delivered or reported
+     */
+    private void failInFlightCapture(PendingCapture capture, String errMessage) {
+        if (!mInFlightCaptures.remove(capture)) {
+            return;
+        }
+        Log.e(TAG, errMessage);
+        mMetrics.recordFailure(mCurrentState);
+        if (mCameraListener != null) {
+            mCameraListener.onCaptureFailed(capture.getRequestId(), new CameraException(errMessage));
+        }
+        onCaptureDone();
+    }
+
+    /**
+     * Finds the capture by the timestamp of its image. Images come in the order of requests,
+     * so the oldest capture is taken if the start of the capture hasn't been reported
+     */
+    @Nullable
+    private PendingCapture takeInFlightCapture(long timestamp) {
+        for (Iterator<PendingCapture> it = mInFlightCaptures.iterator(); it.hasNext(); ) {
+            PendingCapture capture = it.next();
+            if (capture.getSensorTimestamp() == timestamp) {
+                it.remove();
+                return capture;
+            }
+        }
+        return mInFlightCaptures.poll();
+    }
+
+    private void failCaptures(Collection<PendingCapture> captures, String errMessage) {
+        for (PendingCapture capture : captures) {
+            if (mCameraListener != null) {
+                mCameraListener.onCaptureFailed(capture.getRequestId(), new CameraException(errMessage));
+            }
+        }
+        captures.clear();
+    }
+
+    /**
+     * A thumbnail which the camera has dropped never comes, and nothing newer flushes the last image
+     * of a burst. So an image waits for its thumbnail only for a while, then it's delivered without it
+     */
+    private void waitForThumbnail(final long timestamp, final MediaImageLease lease) {
+        mPendingLeases.put(timestamp, lease);
+        mBgClient.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (mPendingLeases.get(timestamp) == lease) {
+                    Log.w(TAG, "Thumbnail of request " + lease.getRequestId() + " is lost");
+                    flushPendingLease(timestamp);
+                }
+            }
+        }, THUMBNAIL_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Delivers the image which waits for its thumbnail without it
+     */
+    private void flushPendingLease(long timestamp) {
+        MediaImageLease lease = mPendingLeases.get(timestamp);
+        if (lease != null) {
+            mPendingLeases.remove(timestamp);
+            onImageReady(lease);
+        }
+    }
+
+    /**
+     * @return thumbnail of the image with the given timestamp, null if it hasn't come yet
+     */
+    @Nullable
+    private ImageLease takePendingThumbnail(long timestamp) {
+        // Images come in order, thumbnails older than this image lost their images
+        while (mPendingThumbnails.size() > 0 && mPendingThumbnails.keyAt(0) < timestamp) {
+            mPendingThumbnails.removeAt(0);
+        }
+        ImageLease thumbnail = mPendingThumbnails.get(timestamp);
+        if (thumbnail != null) {
+            mPendingThumbnails.remove(timestamp);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Submits as many requested images as the image ring can take. One slot of the ring is kept free
+     * for the image which is being delivered to the listener right now, leased images hold their slots
+     * until they are released. Every capture carries its {@link PendingCapture} as the tag of its request
+     */
+    private void submitRequestedImages() {
+        int count = Math.min(mRequestedCaptures.size(), mImageRingSize - 1
+                - mInFlightCaptures.size() - mLeasedImages - mPendingLeases.size());
+        if (count <= 0) {
+            return;
+        }
+
+        try {
+            if (mCaptureSession == null) {
+                throw new CameraException("Session has been closed. " +
+                        "Failed to file actual capture request");
+            }
+            CaptureRequest.Builder requester =
+                    mCamera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            requester.addTarget(mImageReader.getSurface());
+            if (mThumbnailReader != null) {
+                requester.addTarget(mThumbnailReader.getSurface());
+            }
+            int jpegOrientation = getJpegOrientation(mOrientationProvider.getDeviceOrientation());
+            requester.set(CaptureRequest.JPEG_ORIENTATION, jpegOrientation);
+
+            List<CaptureRequest> requests = new ArrayList<>(count);
+            long shutterStartNanos = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                PendingCapture capture = mRequestedCaptures.poll();
+                capture.setShutterStartNanos(shutterStartNanos);
+                capture.setJpegOrientation(jpegOrientation);
+                // Failed submits are reported with the other captures in flight on close
+                mInFlightCaptures.add(capture);
+                requester.setTag(capture);
+                requests.add(requester.build());
+            }
+
+            if (count == 1) {
+                mCaptureSession.capture(requests.get(0), mStillCaptureCallback, mBgClient.getHandler());
+            } else {
+                mCaptureSession.captureBurst(requests, mStillCaptureCallback, mBgClient.getHandler());
+            }
+
+        } catch (CameraAccessException | CameraException e) {
+            sendEventOnImageFailed(e, "Failed to get actual capture request. ");
+            handleState(CameraState.CLOSE);
+        }
+    }
+
+    private void deliverImage(ImageLease lease) {
+        if (mCaptureToFileListener != null) {
+            saveImage(lease, mCaptureToFileListener);
+            return;
+        }
+        if (mImageLeaseListener != null) {
+            mImageLeaseListener.onImageLeased(lease);
+            return;
+        }
+        try {
+            if (mCameraListener != null) {
+                ByteArrayPool pool = mByteArrayPool;
+                int length = lease.getSize();
+                byte[] bytes = pool != null ? lease.toByteArray(pool) : lease.toByteArray();
+                mCameraListener.onImageTaken(lease.getRequestId(), bytes, length);
+            }
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Reads capabilities of every camera from the camera service once, then they come from the cache
+     */
+    private List<CameraCapabilities> getCameraCapabilities() throws CameraAccessException {
+        if (mCapabilityCache.isComplete()) {
+            return mCapabilityCache.getAll();
+        }
+
+        List<CameraCapabilities> capabilities = new ArrayList<>();
+        for (String cameraId : mCameraManager.getCameraIdList()) {
+            capabilities.add(readCameraCapabilities(cameraId));
+        }
+        mCapabilityCache.putAll(capabilities);
+        mIoClient.post(new Runnable() {
+            @Override
+            public void run() {
+                mCapabilityCache.save();
+            }
+        });
+        return capabilities;
+    }
+
+    private CameraCapabilities readCameraCapabilities(String cameraId) throws CameraAccessException {
+        CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraId);
+        Integer lensFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        StreamConfigurationMap streamCfgMap = characteristics
+                .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+        SparseArray<List<PictureSize>> outputSizes = new SparseArray<>();
+        if (streamCfgMap != null) {
+            for (int format : streamCfgMap.getOutputFormats()) {
+                Size[] sizes = streamCfgMap.getOutputSizes(format);
+                if (sizes == null) {
+                    continue;
+                }
+                List<PictureSize> pictureSizes = new ArrayList<>(sizes.length);
+                for (Size size : sizes) {
+                    pictureSizes.add(new PictureSize(size.getWidth(), size.getHeight()));
+                }
+                outputSizes.put(format, Collections.unmodifiableList(pictureSizes));
+            }
+        }
+        return new CameraCapabilities(cameraId,
+                lensFacing == null ? -1 : lensFacing,
+                sensorOrientation == null ? 0 : sensorOrientation,
+                outputSizes);
     }
 
-    private static class CompareSizesByArea implements Comparator<Size> {
+    private static class CompareSizesByArea implements Comparator<PictureSize> {
         @Override
-        public int compare(Size lhs, Size rhs) {
-            return Long.signum((long) lhs.getWidth() * lhs.getHeight() -
-                    (long) rhs.getWidth() * rhs.getHeight());
+        public int compare(PictureSize lhs, PictureSize rhs) {
+            return Long.signum(lhs.getArea() - rhs.getArea());
         }
     }
 
-    private int getJpegOrientation(int deviceOrientation) throws CameraAccessException {
+    private int getJpegOrientation(int deviceOrientation) {
         if (deviceOrientation == android.view.OrientationEventListener.ORIENTATION_UNKNOWN) {
             return 0;
         }
-        CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(mCamera.getId());
-        int sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        int sensorOrientation = mCameraCapabilities.getSensorOrientation();
         deviceOrientation = (deviceOrientation + 45) / 90 * 90;
         deviceOrientation = -deviceOrientation;
 
@@ -351,8 +1178,42 @@ public class SnapshotMakerV2 implements SnapshotMaker {
         return jpegOrientation;
     }
 
+    /**
+     * Writes the image to a file on the I/O lane and gives it back to the camera as soon as the write returns
+     */
+    private void saveImage(final ImageLease lease, final SnapshotListener listener) {
+        // Several images of a burst can be taken within the same second
+        final String name = LocalFileStorage.generateSnapshotName(lease.getRequestId());
+        mIoClient.post(new Runnable() {
+            @Override
+            public void run() {
+                saveImage(lease, name, listener);
+            }
+        });
+    }
+
+    private void saveImage(ImageLease lease, String name, SnapshotListener listener) {
+        long captureRequestedNanos = lease.getCaptureRequestedNanos();
+        long saveStartNanos = System.nanoTime();
+        try {
+            LocalFileStorage.saveMediaBuffer(lease.getBuffer(), name,
+                    lease.getWidth(), lease.getHeight(), lease.getOrientation());
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Unable to save image " + name, e);
+            mMetrics.recordSaveFailure();
+            listener.onImageSaveFailed(name, e);
+            return;
+        } finally {
+            lease.release();
+        }
+        mMetrics.recordSince(CaptureMetrics.Phase.SAVE, saveStartNanos);
+        mMetrics.recordSince(CaptureMetrics.Phase.SHUTTER_TO_DISK, captureRequestedNanos);
+        listener.onImageSaved(name, LocalFileStorage.getSavedPhotoPath(name));
+    }
+
     private void sendEventOnImageFailed(Exception e, String errMessage) {
         Log.e(TAG, errMessage, e);
+        mMetrics.recordFailure(mCurrentState);
         mCameraListener.onImageFailed(e, errMessage);
     }
 }
@@ -7,34 +7,73 @@ import android.os.Message;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 public class BackgroundWorker {
 
     private static final String TAG = "BackgroundWorker";
 
-    private HandlerThread mThread;
+    /**
+     * Every lane has its own thread, so e.g. a slow disk write doesn't delay camera callbacks
+     */
+    public enum Lane {
+        DEFAULT("ApplicationWorker", android.os.Process.THREAD_PRIORITY_BACKGROUND),
+        CAMERA("CameraWorker", android.os.Process.THREAD_PRIORITY_FOREGROUND),
+        IO("IoWorker", android.os.Process.THREAD_PRIORITY_BACKGROUND),
+        COMPUTE("ComputeWorker", android.os.Process.THREAD_PRIORITY_BACKGROUND);
+
+        private final String mThreadName;
+        private final int mPriority;
+
+        Lane(String threadName, int priority) {
+            mThreadName = threadName;
+            mPriority = priority;
+        }
+    }
+
+    private Map<Lane, HandlerThread> mThreads = new EnumMap<>(Lane.class);
+    private Map<Lane, Client> mLaneClients = new EnumMap<>(Lane.class);
     private Client mDefaultClient = new Client();
     private List<Client> mClients = new ArrayList<>();
 
     public BackgroundWorker() {
         addClient(mDefaultClient);
+        mLaneClients.put(Lane.DEFAULT, mDefaultClient);
     }
 
     public Client getDefault() {
         return mDefaultClient;
     }
 
+    /**
+     * @return shared client of the lane, it's attached on the first call
+     */
+    public synchronized Client getClient(Lane lane) {
+        Client client = mLaneClients.get(lane);
+        if (client == null) {
+            client = new Client();
+            addClient(client, lane);
+            mLaneClients.put(lane, client);
+        }
+        return client;
+    }
+
     public synchronized void addClient(Client client) {
+        addClient(client, Lane.DEFAULT);
+    }
+
+    public synchronized void addClient(Client client, Lane lane) {
         if (mClients.contains(client)) {
             throw new RuntimeException("Client is already attached to the worker");
         }
 
-        initThreadIfNeeded();
+        initThreadIfNeeded(lane);
 
         mClients.add(client);
-        client.setWorker(this);
-        client.attach(mThread.getLooper());
+        client.setWorker(this, lane);
+        client.attach(mThreads.get(lane).getLooper());
     }
 
     public synchronized void removeClient(Client client) {
@@ -42,25 +81,32 @@ public class BackgroundWorker {
             throw new RuntimeException("Client wasn't attached to the worker");
         }
         mClients.remove(client);
-        client.setWorker(null);
+        if (mLaneClients.get(client.getLane()) == client) {
+            mLaneClients.remove(client.getLane());
+        }
+        client.setWorker(null, null);
         client.detach();
     }
 
     /**
-     * Initializes a worker thread if needed. Return a boolean indicating if a new thread was created
+     * Initializes a thread of the lane if needed. Return a boolean indicating if a new thread was created
      */
-    private synchronized boolean initThreadIfNeeded() {
-        if (mThread != null && mThread.isAlive()) {
+    private synchronized boolean initThreadIfNeeded(Lane lane) {
+        HandlerThread thread = mThreads.get(lane);
+        if (thread != null && thread.isAlive()) {
             return false;
         }
-        Log.d(TAG, "Starting ApplicationWorker thread");
+        Log.d(TAG, "Starting " + lane.mThreadName + " thread");
 
-        mThread = new HandlerThread("ApplicationWorker", android.os.Process.THREAD_PRIORITY_BACKGROUND);
-        mThread.start();
-        mThread.setUncaughtExceptionHandler(new SilentUEH());
+        thread = new HandlerThread(lane.mThreadName, lane.mPriority);
+        thread.start();
+        thread.setUncaughtExceptionHandler(new SilentUEH());
+        mThreads.put(lane, thread);
 
         for (Client cli : mClients) {
-            cli.attach(mThread.getLooper());
+            if (cli.getLane() == lane) {
+                cli.attach(thread.getLooper());
+            }
         }
         return true;
     }
@@ -68,11 +114,16 @@ public class BackgroundWorker {
     public static class Client {
 
         private BackgroundWorker mWorker;
+        private Lane mLane;
         private Handler mHandler;
 
         public Client() {
         }
 
+        public Lane getLane() {
+            return mLane;
+        }
+
         public Handler getHandler() {
             checkState();
             return mHandler;
@@ -120,7 +171,7 @@ public class BackgroundWorker {
             if (mWorker == null || mHandler == null) {
                 throw new RuntimeException("Client wasn't registered or is detached");
             }
-            mWorker.initThreadIfNeeded();
+            mWorker.initThreadIfNeeded(mLane);
         }
 
         void attach(Looper looper) {
@@ -138,15 +189,16 @@ public class BackgroundWorker {
             mHandler = null;
         }
 
-        void setWorker(BackgroundWorker worker) {
+        void setWorker(BackgroundWorker worker, Lane lane) {
             mWorker = worker;
+            mLane = lane;
         }
     }
 
     static class SilentUEH implements Thread.UncaughtExceptionHandler {
         @Override
         public void uncaughtException(Thread thread, Throwable ex) {
-            Log.e(TAG, "ApplicationWorker thread dead", ex);
+            Log.e(TAG, thread.getName() + " thread dead", ex);
         }
     }
 }
@@ -0,0 +1,133 @@
+package codes.evo.snapshotlib.utils;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bounded pool of reusable byte arrays for snapshots.
+ * Arrays are grouped by size classes: every power of two above {@link #MIN_CLASS_SIZE} is split
+ * into {@link #CLASSES_PER_DOUBLING} steps, so a borrowed array is at most a quarter bigger than requested.
+ * Borrowed arrays are usually bigger than the data, the count of valid bytes must be passed along with them
+ */
+public class ByteArrayPool {
+
+    private static final String TAG = "ByteArrayPool";
+
+    public static final int MIN_CLASS_SIZE = 64 * 1024;
+    private static final int CLASSES_PER_DOUBLING = 4;
+
+    private final long mMaxPooledBytes;
+    private final Map<Integer, ArrayDeque<byte[]>> mClasses = new HashMap<>();
+
+    private long mPooledBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mDropCount;
+
+    /**
+     * @param maxPooledBytes hard cap of memory held by idle arrays in the pool
+     */
+    public ByteArrayPool(long maxPooledBytes) {
+        if (maxPooledBytes <= 0) {
+            throw new IllegalArgumentException("Pool capacity must be positive : " + maxPooledBytes);
+        }
+        mMaxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Borrows an array which can hold at least {@code minLength} bytes.
+     * Allocates a new one of the matching size class if the pool has none
+     */
+    public byte[] acquire(int minLength) {
+        int classSize = getClassSize(minLength);
+        synchronized (this) {
+            ArrayDeque<byte[]> arrays = mClasses.get(classSize);
+            byte[] array = arrays == null ? null : arrays.pollLast();
+            if (array != null) {
+                mPooledBytes -= array.length;
+                mHitCount++;
+                return array;
+            }
+            mMissCount++;
+        }
+        return new byte[classSize];
+    }
+
+    /**
+     * Returns an array to the pool. The array is dropped when the pool would exceed its capacity.
+     * Arrays which were not borrowed from the pool are accepted as well
+     */
+    public void release(byte[] array) {
+        if (array == null || array.length < MIN_CLASS_SIZE) {
+            return;
+        }
+        // Every array in a class holds at least the class size, so it's filed under the biggest class it fits
+        int classSize = getFloorClassSize(array.length);
+        synchronized (this) {
+            if (mPooledBytes + array.length > mMaxPooledBytes) {
+                mDropCount++;
+                return;
+            }
+            ArrayDeque<byte[]> arrays = mClasses.get(classSize);
+            if (arrays == null) {
+                arrays = new ArrayDeque<>();
+                mClasses.put(classSize, arrays);
+            }
+            arrays.addLast(array);
+            mPooledBytes += array.length;
+        }
+    }
+
+    public synchronized void clear() {
+        Log.d(TAG, "Clear pool, hits : " + mHitCount + ", misses : " + mMissCount + ", drops : " + mDropCount);
+        mClasses.clear();
+        mPooledBytes = 0;
+    }
+
+    public long getMaxPooledBytes() {
+        return mMaxPooledBytes;
+    }
+
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return count of released arrays which didn't fit into the pool capacity
+     */
+    public synchronized long getDropCount() {
+        return mDropCount;
+    }
+
+    /**
+     * @return the smallest size class which can hold {@code length} bytes
+     */
+    static int getClassSize(int length) {
+        if (length <= MIN_CLASS_SIZE) {
+            return MIN_CLASS_SIZE;
+        }
+        int base = Integer.highestOneBit(length - 1);
+        int step = base / CLASSES_PER_DOUBLING;
+        return base + (length - base + step - 1) / step * step;
+    }
+
+    /**
+     * @return the biggest size class which is not bigger than {@code length}
+     */
+    static int getFloorClassSize(int length) {
+        int base = Integer.highestOneBit(length);
+        int step = base / CLASSES_PER_DOUBLING;
+        return base + (length - base) / step * step;
+    }
+}
@@ -0,0 +1,238 @@
+package codes.evo.snapshotlib.utils;
+
+import android.content.Context;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import codes.evo.snapshotlib.CameraCapabilities;
+import codes.evo.snapshotlib.PictureSize;
+
+/**
+ * Keeps capabilities of cameras in memory and in a small file, so opening a camera and taking
+ * images don't query the camera service every time. The file is dropped when the OS build changes
+ */
+public class CameraCapabilityCache {
+
+    private static final String TAG = "CameraCapabilityCache";
+    private static final String FILE_PREFIX = "camera_capabilities_";
+    private static final int FILE_VERSION = 1;
+
+    private final Context mContext;
+    private final String mName;
+    private final Map<String, CameraCapabilities> mCapabilities = new LinkedHashMap<>();
+
+    private File mFile;
+    private boolean mIsLoaded;
+    private boolean mIsComplete;
+
+    /**
+     * Doesn't touch the disk, the file is read on first use or by {@link #load()}
+     *
+     * @param name name of the cache file, capabilities of different camera APIs must not share it
+     */
+    public CameraCapabilityCache(Context context, String name) {
+        mContext = context;
+        mName = name;
+    }
+
+    /**
+     * Reads the file ahead of the first use, so the thread which opens the camera doesn't wait for the disk
+     */
+    @WorkerThread
+    public synchronized void load() {
+        loadIfNeeded();
+    }
+
+    /**
+     * @return true if the cache holds every camera of the device
+     */
+    public synchronized boolean isComplete() {
+        loadIfNeeded();
+        return mIsComplete;
+    }
+
+    public synchronized List<CameraCapabilities> getAll() {
+        loadIfNeeded();
+        return new ArrayList<>(mCapabilities.values());
+    }
+
+    @Nullable
+    public synchronized CameraCapabilities get(String cameraId) {
+        loadIfNeeded();
+        return mCapabilities.get(cameraId);
+    }
+
+    /**
+     * Replaces the cache with capabilities of every camera of the device
+     */
+    public synchronized void putAll(List<CameraCapabilities> capabilities) {
+        mIsLoaded = true;
+        mCapabilities.clear();
+        for (CameraCapabilities cameraCapabilities : capabilities) {
+            mCapabilities.put(cameraCapabilities.getCameraId(), cameraCapabilities);
+        }
+        mIsComplete = true;
+    }
+
+    /**
+     * Adds or updates capabilities of one camera
+     */
+    public synchronized void put(CameraCapabilities capabilities) {
+        loadIfNeeded();
+        mCapabilities.put(capabilities.getCameraId(), capabilities);
+    }
+
+    public synchronized void invalidate() {
+        mIsLoaded = true;
+        mIsComplete = false;
+        mCapabilities.clear();
+        File file = getFile();
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Writes the cache to its file, should be called after the cache was changed
+     */
+    @WorkerThread
+    public void save() {
+        List<CameraCapabilities> capabilities;
+        boolean isComplete;
+        File file;
+        synchronized (this) {
+            capabilities = new ArrayList<>(mCapabilities.values());
+            isComplete = mIsComplete;
+            file = getFile();
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(getBuildFingerprint());
+            out.writeBoolean(isComplete);
+            out.writeInt(capabilities.size());
+            for (CameraCapabilities cameraCapabilities : capabilities) {
+                writeCapabilities(out, cameraCapabilities);
+            }
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmpFile + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save camera capabilities", e);
+            tmpFile.delete();
+        } finally {
+            CloseableUtils.close(out);
+        }
+    }
+
+    private void loadIfNeeded() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+        File file = getFile();
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION || !getBuildFingerprint().equals(in.readUTF())) {
+                Log.d(TAG, "Camera capabilities are outdated");
+                CloseableUtils.close(in);
+                in = null;
+                invalidate();
+                return;
+            }
+            boolean isComplete = in.readBoolean();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                CameraCapabilities capabilities = readCapabilities(in);
+                mCapabilities.put(capabilities.getCameraId(), capabilities);
+            }
+            mIsComplete = isComplete;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load camera capabilities", e);
+            mCapabilities.clear();
+            mIsComplete = false;
+        } finally {
+            CloseableUtils.close(in);
+        }
+    }
+
+    /**
+     * The cache directory is resolved on first use, getting it may create it
+     */
+    private File getFile() {
+        if (mFile == null) {
+            mFile = new File(mContext.getCacheDir(), FILE_PREFIX + mName);
+        }
+        return mFile;
+    }
+
+    private static void writeCapabilities(DataOutputStream out, CameraCapabilities capabilities)
+            throws IOException {
+        out.writeUTF(capabilities.getCameraId());
+        out.writeInt(capabilities.getLensFacing());
+        out.writeInt(capabilities.getSensorOrientation());
+
+        int[] formats = capabilities.getOutputFormats();
+        out.writeInt(formats.length);
+        for (int format : formats) {
+            List<PictureSize> sizes = capabilities.getOutputSizes(format);
+            out.writeInt(format);
+            out.writeInt(sizes.size());
+            for (PictureSize size : sizes) {
+                out.writeInt(size.getWidth());
+                out.writeInt(size.getHeight());
+            }
+        }
+    }
+
+    private static CameraCapabilities readCapabilities(DataInputStream in) throws IOException {
+        String cameraId = in.readUTF();
+        int lensFacing = in.readInt();
+        int sensorOrientation = in.readInt();
+
+        int formatCount = in.readInt();
+        SparseArray<List<PictureSize>> outputSizes = new SparseArray<>(formatCount);
+        for (int i = 0; i < formatCount; i++) {
+            int format = in.readInt();
+            int sizeCount = in.readInt();
+            List<PictureSize> sizes = new ArrayList<>(sizeCount);
+            for (int j = 0; j < sizeCount; j++) {
+                sizes.add(new PictureSize(in.readInt(), in.readInt()));
+            }
+            outputSizes.put(format, Collections.unmodifiableList(sizes));
+        }
+        return new CameraCapabilities(cameraId, lensFacing, sensorOrientation, outputSizes);
+    }
+
+    private static String getBuildFingerprint() {
+        return Build.FINGERPRINT + "/" + Build.VERSION.SDK_INT;
+    }
+}
@@ -0,0 +1,115 @@
+package codes.evo.snapshotlib.utils;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import codes.evo.snapshotlib.SnapshotMaker;
+
+/**
+ * Latencies of every capture phase, recorded by the snapshot makers and savers.
+ * Timestamps come from {@link System#nanoTime()}, recording doesn't allocate
+ */
+public class CaptureMetrics {
+
+    private static final String TAG = "CaptureMetrics";
+
+    public enum Phase {
+        /**
+         * From openCamera until the camera device is opened
+         */
+        OPEN,
+        /**
+         * From the opened camera device until it's ready to take images
+         */
+        CONFIGURE,
+        /**
+         * From the capture request until the image is available
+         */
+        SHUTTER,
+        /**
+         * Time spent in the image listeners
+         */
+        DELIVER,
+        /**
+         * Time of writing a snapshot to a file
+         */
+        SAVE,
+        /**
+         * From the capture request until the snapshot is written to a file
+         */
+        SHUTTER_TO_DISK
+    }
+
+    private static final CaptureMetrics sInstance = new CaptureMetrics();
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Phase.values().length];
+    private final AtomicLongArray mCameraFailures = new AtomicLongArray(SnapshotMaker.CameraState.values().length);
+    private final AtomicLong mSaveFailures = new AtomicLong();
+
+    public static CaptureMetrics getInstance() {
+        return sInstance;
+    }
+
+    private CaptureMetrics() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param startNanos value of {@link System#nanoTime()} when the phase has started
+     */
+    public void recordSince(Phase phase, long startNanos) {
+        if (startNanos > 0) {
+            mHistograms[phase.ordinal()].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * @param state state of the camera when the failure has happened
+     */
+    public void recordFailure(SnapshotMaker.CameraState state) {
+        mCameraFailures.incrementAndGet(state.ordinal());
+    }
+
+    public void recordSaveFailure() {
+        mSaveFailures.incrementAndGet();
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return mHistograms[phase.ordinal()];
+    }
+
+    public long getFailureCount(SnapshotMaker.CameraState state) {
+        return mCameraFailures.get(state.ordinal());
+    }
+
+    public long getSaveFailureCount() {
+        return mSaveFailures.get();
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < mCameraFailures.length(); i++) {
+            mCameraFailures.set(i, 0);
+        }
+        mSaveFailures.set(0);
+    }
+
+    /**
+     * Writes a summary of every phase to the log
+     */
+    public void dump() {
+        for (Phase phase : Phase.values()) {
+            Log.i(TAG, phase + ": " + getHistogram(phase));
+        }
+        for (SnapshotMaker.CameraState state : SnapshotMaker.CameraState.values()) {
+            Log.i(TAG, "Failures in " + state + ": " + getFailureCount(state));
+        }
+        Log.i(TAG, "Save failures: " + getSaveFailureCount());
+    }
+}
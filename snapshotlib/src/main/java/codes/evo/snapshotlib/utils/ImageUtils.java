@@ -0,0 +1,77 @@
+package codes.evo.snapshotlib.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+@TargetApi(21)
+public class ImageUtils {
+
+    /**
+     * Packs a {@link ImageFormat#YUV_420_888} image into an NV21 array, the layout
+     * {@link android.graphics.YuvImage} and Camera API v1 previews use.
+     * Planes may have any row and pixel stride, so they are copied row by row
+     *
+     * @param image YUV_420_888 image, it stays open
+     * @return array of width * height * 3 / 2 bytes
+     */
+    public static byte[] toNv21(Image image) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Unsupported image format : " + image.getFormat());
+        }
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer[] buffers = new ByteBuffer[planes.length];
+        int[] rowStrides = new int[planes.length];
+        int[] pixelStrides = new int[planes.length];
+        for (int i = 0; i < planes.length; i++) {
+            buffers[i] = planes[i].getBuffer();
+            rowStrides[i] = planes[i].getRowStride();
+            pixelStrides[i] = planes[i].getPixelStride();
+        }
+        return toNv21(image.getWidth(), image.getHeight(), buffers, rowStrides, pixelStrides);
+    }
+
+    /**
+     * @param buffers      Y, U and V planes
+     * @param rowStrides   row strides of the planes
+     * @param pixelStrides pixel strides of the planes
+     */
+    static byte[] toNv21(int width, int height, ByteBuffer[] buffers, int[] rowStrides, int[] pixelStrides) {
+        byte[] nv21 = new byte[width * height + 2 * (width / 2) * (height / 2)];
+
+        int offset = copyPlane(buffers[0], rowStrides[0], pixelStrides[0], width, height, nv21, 0, 1);
+        // NV21 interleaves chroma as V then U
+        copyPlane(buffers[2], rowStrides[2], pixelStrides[2], width / 2, height / 2, nv21, offset, 2);
+        copyPlane(buffers[1], rowStrides[1], pixelStrides[1], width / 2, height / 2, nv21, offset + 1, 2);
+        return nv21;
+    }
+
+    /**
+     * @return offset right after the last row written when the output isn't interleaved
+     */
+    private static int copyPlane(ByteBuffer planeBuffer, int rowStride, int pixelStride, int width, int height,
+                                 byte[] output, int offset, int outputPixelStride) {
+        ByteBuffer buffer = planeBuffer.duplicate();
+        int rowStart = buffer.position();
+        byte[] row = new byte[rowStride];
+
+        for (int y = 0; y < height; y++) {
+            // The last row may be shorter than the stride
+            int rowLength = Math.min(rowStride, (width - 1) * pixelStride + 1);
+            buffer.position(rowStart + y * rowStride);
+            buffer.get(row, 0, rowLength);
+            if (pixelStride == 1 && outputPixelStride == 1) {
+                System.arraycopy(row, 0, output, offset, width);
+                offset += width;
+            } else {
+                for (int x = 0; x < width; x++) {
+                    output[offset] = row[x * pixelStride];
+                    offset += outputPixelStride;
+                }
+            }
+        }
+        return offset;
+    }
+}
@@ -3,45 +3,418 @@ package codes.evo.snapshotlib.utils;
 import android.content.Context;
 import android.os.Environment;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Files are spread over subdirectories by the date of the name and a hash of it,
+ * e.g. {@code 20170101/3f/20170101_120000_042_0.jpg}, so no directory grows too big to list and open.
+ * The path of a file is computed from its name alone. In the pack mode snapshots are appended
+ * to segment files instead, see {@link #setPackStorageEnabled(boolean, BackgroundWorker)}
+ */
 public class LocalFileStorage {
 
+    public interface OnMediaDeletedListener {
+        /**
+         * Called on the thread which deleted the snapshot, e.g. the I/O lane when the quota evicts it
+         */
+        void onMediaDeleted(String name);
+    }
+
     private static final String TAG = "LocalFileStorage";
     private static final String PHOTO_EXT = ".jpg";
+    private static final String UNDATED_DIR = "undated";
+    private static final String MANIFEST_FILE_NAME = ".manifest";
+    private static final String PACK_DIR_NAME = ".packs";
+    private static final int DATE_LENGTH = 8;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
     private static String MEDIA_PATH;
+    private static volatile SnapshotManifest sManifest;
+    private static volatile StorageQuota sQuota;
+    private static volatile PackFileStorage sPackStorage;
+    private static volatile boolean sIsPackStorageEnabled;
+    private static volatile BackgroundWorker.Client sPackIoClient;
+
+    // Guarded by the class, the second prefix is formatted once a second
+    private static final SimpleDateFormat sSecondFormat = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+    private static long sNameSecond = -1;
+    private static String sNameSecondPrefix;
+    private static long sLastNameMillis;
+    private static int sNameSequence;
+
+    private static final List<OnMediaDeletedListener> sDeletedListeners = new CopyOnWriteArrayList<>();
+
+    private static final Set<String> sCreatedDirs =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     public static void init(Context context) {
         File mediaDirExternalStorageDir = context.getExternalFilesDir(Environment.DIRECTORY_PICTURES);
         MEDIA_PATH = mediaDirExternalStorageDir == null ? null : mediaDirExternalStorageDir.getAbsolutePath();
         createNonExistingDir(MEDIA_PATH);
+
+        if (sManifest != null) {
+            sManifest.close();
+        }
+        sManifest = MEDIA_PATH == null ? null : new SnapshotManifest(new File(MEDIA_PATH, MANIFEST_FILE_NAME));
+        if (sPackStorage != null) {
+            sPackStorage.close();
+        }
+        sPackStorage = MEDIA_PATH == null ? null : new PackFileStorage(new File(MEDIA_PATH, PACK_DIR_NAME));
+        if (sPackStorage != null) {
+            sPackStorage.setIoClient(sPackIoClient);
+        }
+    }
+
+    /**
+     * In the pack mode a save appends the snapshot to a big segment file, so a burst doesn't create
+     * a file and a directory entry per snapshot. The path from {@link #getPhotoFilePath(String)}
+     * holds the snapshot only after {@link #extractMedia(String)}, {@link #readMedia(String)} reads it
+     * in both modes. Packed snapshots stay readable when the mode is turned off.
+     * Space of deleted snapshots is freed once their segment is deleted or compacted
+     *
+     * @param worker worker which compacts the segments on its I/O lane
+     */
+    public static void setPackStorageEnabled(boolean enabled, BackgroundWorker worker) {
+        sPackIoClient = worker.getClient(BackgroundWorker.Lane.IO);
+        sIsPackStorageEnabled = enabled;
+        PackFileStorage packStorage = sPackStorage;
+        if (packStorage != null) {
+            packStorage.setIoClient(sPackIoClient);
+        }
+    }
+
+    /**
+     * @return index of the snapshots saved here, null until {@link #init(Context)} found the media directory
+     */
+    @Nullable
+    public static SnapshotManifest getManifest() {
+        return sManifest;
+    }
+
+    /**
+     * Names grow monotonically and never repeat within the process, several names within the same
+     * millisecond get increasing sequence numbers, e.g. {@code 20170101_120000_042_0}, {@code 20170101_120000_042_1}.
+     * A clock which goes back doesn't make names go back
+     */
+    public static synchronized String generateUniqueName() {
+        long millis = System.currentTimeMillis();
+        if (millis > sLastNameMillis) {
+            sLastNameMillis = millis;
+            sNameSequence = 0;
+        } else {
+            millis = sLastNameMillis;
+            sNameSequence++;
+        }
+
+        long second = millis / 1000;
+        if (second != sNameSecond) {
+            sNameSecond = second;
+            sNameSecondPrefix = sSecondFormat.format(new Date(millis));
+        }
+        int millisOfSecond = (int) (millis % 1000);
+        StringBuilder name = new StringBuilder(sNameSecondPrefix.length() + 8);
+        name.append(sNameSecondPrefix).append('_');
+        if (millisOfSecond < 100) {
+            name.append('0');
+        }
+        if (millisOfSecond < 10) {
+            name.append('0');
+        }
+        return name.append(millisOfSecond).append('_').append(sNameSequence).toString();
     }
 
-    public static String generateUniqueName() {
-        return new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format((new Date()).getTime());
+    /**
+     * @return unique name of the snapshot taken for the request, e.g. {@code 20170101_120000_042_0_7}
+     */
+    public static String generateSnapshotName(long requestId) {
+        return generateUniqueName() + "_" + requestId;
     }
 
-    public static void saveMediaBytes(byte[] fileContent, String name) {
+    /**
+     * Saves go over the quota for a moment, then the quota deletes snapshots on the I/O lane.
+     * The snapshots saved so far are checked against the quota on the I/O lane as well
+     *
+     * @param quota quota or null to keep every snapshot
+     */
+    public static void setQuota(@Nullable StorageQuota quota) {
+        sQuota = quota;
+        if (quota != null) {
+            quota.postEvictionCheck();
+        }
+    }
+
+    /**
+     * @param listener listener which is told about every deleted snapshot, including the ones the quota deletes
+     */
+    public static void addOnMediaDeletedListener(OnMediaDeletedListener listener) {
+        sDeletedListeners.add(listener);
+    }
+
+    public static void removeOnMediaDeletedListener(OnMediaDeletedListener listener) {
+        sDeletedListeners.remove(listener);
+    }
+
+    /**
+     * Deletes the snapshot, both its file and its packed copy, and removes it from the manifest
+     *
+     * @return false if the file couldn't be deleted
+     */
+    public static boolean deleteMedia(String name) {
+        PackFileStorage packStorage = sPackStorage;
+        if (packStorage != null) {
+            packStorage.remove(name);
+        }
         File file = getMediaFile(name);
-        StreamUtils.save(fileContent, file.getAbsolutePath());
+        if (!file.delete() && file.exists()) {
+            return false;
+        }
+        SnapshotManifest manifest = sManifest;
+        if (manifest != null) {
+            manifest.remove(name);
+        }
+        StorageQuota quota = sQuota;
+        if (quota != null) {
+            quota.onSnapshotDeleted(name);
+        }
+        for (OnMediaDeletedListener listener : sDeletedListeners) {
+            listener.onMediaDeleted(name);
+        }
+        return true;
+    }
+
+    public static void saveMediaBytes(byte[] fileContent, String name) throws IOException {
+        saveMediaBytes(fileContent, fileContent.length, name);
+    }
+
+    /**
+     * Saves the first {@code length} bytes of the array, e.g. of an array borrowed from {@link ByteArrayPool}
+     */
+    public static void saveMediaBytes(byte[] fileContent, int length, String name) throws IOException {
+        saveMediaBytes(fileContent, length, name, 0, 0, 0);
+    }
+
+    /**
+     * The size and the orientation of the image are written to the manifest, 0 if they are unknown
+     */
+    public static void saveMediaBytes(byte[] fileContent, int length, String name,
+                                      int width, int height, int orientation) throws IOException {
+        PackFileStorage packStorage = getPackStorageForSave();
+        try {
+            if (packStorage != null) {
+                packStorage.append(name, fileContent, length);
+            } else {
+                File file = getMediaFile(name);
+                createParentDirIfNeeded(file);
+                StreamUtils.save(fileContent, length, file.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            onSaveFailed(length);
+            throw e;
+        }
+        addToManifest(name, length, width, height, orientation);
+    }
+
+    /**
+     * Saves the remaining bytes of the buffer, a direct buffer is written without a copy on the heap
+     */
+    public static void saveMediaBuffer(ByteBuffer fileContent, String name) throws IOException {
+        saveMediaBuffer(fileContent, name, 0, 0, 0);
+    }
+
+    /**
+     * @see #saveMediaBytes(byte[], int, String, int, int, int)
+     */
+    public static void saveMediaBuffer(ByteBuffer fileContent, String name,
+                                       int width, int height, int orientation) throws IOException {
+        PackFileStorage packStorage = getPackStorageForSave();
+        int length = fileContent.remaining();
+        try {
+            if (packStorage != null) {
+                packStorage.append(name, fileContent);
+            } else {
+                File file = getMediaFile(name);
+                createParentDirIfNeeded(file);
+                StreamUtils.save(fileContent, file.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            onSaveFailed(length);
+            throw e;
+        }
+        addToManifest(name, length, width, height, orientation);
     }
 
     public static String getPhotoFilePath(String name) {
         return getMediaFilePath(name + PHOTO_EXT);
     }
 
+    /**
+     * @return path of the file of a saved snapshot, null if it's packed and wasn't extracted
+     */
+    @Nullable
+    public static String getSavedPhotoPath(String name) {
+        PackFileStorage packStorage = sPackStorage;
+        if (packStorage != null && packStorage.contains(name) && !getMediaFile(name).exists()) {
+            return null;
+        }
+        return getPhotoFilePath(name);
+    }
+
+    /**
+     * Maps the snapshot to memory, a packed one is mapped straight from its segment
+     *
+     * @return read-only buffer with the bytes of the snapshot
+     * @throws IOException if there's no such snapshot
+     */
+    @WorkerThread
+    public static ByteBuffer readMedia(String name) throws IOException {
+        PackFileStorage packStorage = sPackStorage;
+        ByteBuffer buffer = packStorage != null ? packStorage.read(name) : null;
+        if (buffer != null) {
+            return buffer;
+        }
+        RandomAccessFile file = new RandomAccessFile(getMediaFile(name), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            CloseableUtils.close(file);
+        }
+    }
+
+    /**
+     * Writes a packed snapshot to its own file, e.g. to share it with another app.
+     * The packed copy is kept, {@link #deleteMedia(String)} deletes both
+     *
+     * @return path of the file, see {@link #getPhotoFilePath(String)}
+     * @throws IOException if there's no such snapshot
+     */
+    @WorkerThread
+    public static String extractMedia(String name) throws IOException {
+        File file = getMediaFile(name);
+        if (file.exists()) {
+            return file.getPath();
+        }
+        PackFileStorage packStorage = sPackStorage;
+        ByteBuffer buffer = packStorage != null ? packStorage.read(name) : null;
+        if (buffer == null) {
+            throw new IOException("No such snapshot: " + name);
+        }
+        createParentDirIfNeeded(file);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        StreamUtils.save(buffer, tmpFile.getPath());
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Cannot rename " + tmpFile + " to " + file);
+        }
+        return file.getPath();
+    }
+
+    private static void addToManifest(String name, long size, int width, int height, int orientation) {
+        SnapshotManifest manifest = sManifest;
+        if (manifest != null) {
+            manifest.add(name, System.currentTimeMillis(), size, orientation, width, height);
+        }
+        StorageQuota quota = sQuota;
+        if (quota != null) {
+            quota.onSnapshotSaved(name);
+            quota.evictIfNeeded();
+        }
+    }
+
+    /**
+     * @return bytes which segments take beyond the packed snapshots, e.g. of deleted ones
+     */
+    static long getPackedDeadBytes() {
+        PackFileStorage packStorage = sPackStorage;
+        return packStorage != null ? packStorage.getDeadBytes() : 0;
+    }
+
+    @Nullable
+    private static PackFileStorage getPackStorageForSave() throws IOException {
+        if (!sIsPackStorageEnabled) {
+            return null;
+        }
+        PackFileStorage packStorage = sPackStorage;
+        if (packStorage == null) {
+            throw new IOException("Media directory is not available");
+        }
+        return packStorage;
+    }
+
+    /**
+     * Space is made for the next saves only if the disk is full, other failures are just reported
+     */
+    private static void onSaveFailed(long length) {
+        StorageQuota quota = sQuota;
+        if (quota == null || MEDIA_PATH == null) {
+            return;
+        }
+        File mediaDir = new File(MEDIA_PATH);
+        if (mediaDir.exists() && mediaDir.getUsableSpace() < length) {
+            Log.w(TAG, "Disk is full, " + mediaDir.getUsableSpace() + " bytes are left");
+            quota.evictNow();
+        }
+    }
+
     private static File getMediaFile(String name) {
         return new File(getPhotoFilePath(name));
     }
 
     private static String getMediaFilePath(String fileName) {
-        return new File(MEDIA_PATH + fileName).getPath();
+        return new File(MEDIA_PATH, getShardPath(fileName)).getPath();
+    }
+
+    /**
+     * Names which start with a date, like the generated ones, go to the directory of that date,
+     * other names go to one directory. Within it the lowest byte of the hash of the name picks one of 256 directories
+     */
+    private static String getShardPath(String fileName) {
+        boolean isDated = fileName.length() > DATE_LENGTH;
+        for (int i = 0; isDated && i < DATE_LENGTH; i++) {
+            isDated = Character.isDigit(fileName.charAt(i));
+        }
+        int hash = fileName.hashCode();
+        StringBuilder path = new StringBuilder(fileName.length() + 16);
+        if (isDated) {
+            path.append(fileName, 0, DATE_LENGTH);
+        } else {
+            path.append(UNDATED_DIR);
+        }
+        return path.append(File.separatorChar)
+                .append(HEX_DIGITS[(hash >>> 4) & 0xF])
+                .append(HEX_DIGITS[hash & 0xF])
+                .append(File.separatorChar)
+                .append(fileName)
+                .toString();
+    }
+
+    /**
+     * Every directory is checked once per process, files of the same directory don't touch the disk for it
+     */
+    private static void createParentDirIfNeeded(File file) throws IOException {
+        String dirPath = file.getParent();
+        if (dirPath == null || sCreatedDirs.contains(dirPath)) {
+            return;
+        }
+        if (!createNonExistingDir(dirPath)) {
+            throw new IOException("Cannot create directory: " + dirPath);
+        }
+        sCreatedDirs.add(dirPath);
     }
 
     private static boolean createNonExistingDir(@Nullable String dirPath) {
@@ -0,0 +1,182 @@
+package codes.evo.snapshotlib.utils;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.OrientationEventListener;
+import android.view.Surface;
+import android.view.WindowManager;
+
+/**
+ * Orientation of the device in steps of 90 degrees, the way {@link OrientationEventListener} measures it.
+ * The accelerometer is only listened to for a few events when the value is older than the max age,
+ * so an open camera doesn't keep the sensor running. Until the sensor has answered, and on devices
+ * without one, the rotation of the display is used.
+ * Must be used on the thread of the handler, sensor events come there as well
+ */
+public class OrientationProvider {
+
+    public static final int ORIENTATION_UNKNOWN = OrientationEventListener.ORIENTATION_UNKNOWN;
+
+    private static final long DEFAULT_MAX_AGE_MILLIS = 2000;
+    private static final long SAMPLING_TIMEOUT_MILLIS = 300;
+    // The first events may still hold values from before the sensor was off
+    private static final int SAMPLE_COUNT = 3;
+
+    private final SensorManager mSensorManager;
+    private final Sensor mSensor;
+    private final WindowManager mWindowManager;
+    private final Handler mHandler;
+
+    // Set from any thread, read on the thread of the handler
+    private volatile long mMaxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+    private volatile boolean mIsDisplayRotationEnabled;
+
+    private int mOrientation = ORIENTATION_UNKNOWN;
+    private long mSampledAtMillis;
+    private boolean mIsSampling;
+    private int mSampleCount;
+
+    private final SensorEventListener mSensorListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            int orientation = toOrientation(event.values);
+            // A device which lies flat keeps the last known orientation
+            if (orientation != ORIENTATION_UNKNOWN) {
+                mOrientation = toBucket(orientation);
+            }
+            mSampledAtMillis = SystemClock.elapsedRealtime();
+            if (++mSampleCount >= SAMPLE_COUNT) {
+                stopSampling();
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        }
+    };
+
+    private final Runnable mSamplingTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            stopSampling();
+        }
+    };
+
+    /**
+     * @param handler handler of the thread which uses the provider
+     */
+    public OrientationProvider(Context context, Handler handler) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mSensor = mSensorManager != null ? mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) : null;
+        mWindowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        mHandler = handler;
+    }
+
+    /**
+     * @param maxAgeMillis how long a sampled orientation is used before the sensor is asked again
+     */
+    public void setMaxAge(long maxAgeMillis) {
+        if (maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Max age must not be negative : " + maxAgeMillis);
+        }
+        mMaxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * When the UI of the app rotates with the device, the rotation of the display is enough
+     * and the sensor is never used
+     */
+    public void setDisplayRotationEnabled(boolean enabled) {
+        mIsDisplayRotationEnabled = enabled;
+    }
+
+    /**
+     * Starts sampling if the orientation is stale, call it ahead of a capture
+     * so that the value is fresh by the time it's read
+     */
+    public void refresh() {
+        if (mIsDisplayRotationEnabled || mSensor == null || mIsSampling || !isStale()) {
+            return;
+        }
+        mIsSampling = true;
+        mSampleCount = 0;
+        mSensorManager.registerListener(mSensorListener, mSensor, SensorManager.SENSOR_DELAY_GAME, mHandler);
+        mHandler.postDelayed(mSamplingTimeoutTask, SAMPLING_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Returns right away, a stale value is returned as well and refreshed for the next call
+     *
+     * @return 0, 90, 180 or 270 degrees, or {@link #ORIENTATION_UNKNOWN}
+     */
+    public int getDeviceOrientation() {
+        if (mIsDisplayRotationEnabled || mSensor == null) {
+            return getDisplayOrientation();
+        }
+        refresh();
+        return mOrientation != ORIENTATION_UNKNOWN ? mOrientation : getDisplayOrientation();
+    }
+
+    /**
+     * Stops sampling, e.g. when the camera is closed. The last value is kept
+     */
+    public void stop() {
+        if (mIsSampling) {
+            stopSampling();
+        }
+    }
+
+    private boolean isStale() {
+        return mOrientation == ORIENTATION_UNKNOWN
+                || SystemClock.elapsedRealtime() - mSampledAtMillis > mMaxAgeMillis;
+    }
+
+    private void stopSampling() {
+        mHandler.removeCallbacks(mSamplingTimeoutTask);
+        mSensorManager.unregisterListener(mSensorListener);
+        mIsSampling = false;
+    }
+
+    /**
+     * The display turns against the device, e.g. it's at 270 degrees when the device is at 90 degrees
+     */
+    private int getDisplayOrientation() {
+        if (mWindowManager == null) {
+            return ORIENTATION_UNKNOWN;
+        }
+        switch (mWindowManager.getDefaultDisplay().getRotation()) {
+            case Surface.ROTATION_90:
+                return 270;
+            case Surface.ROTATION_180:
+                return 180;
+            case Surface.ROTATION_270:
+                return 90;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * The same computation as {@link OrientationEventListener} does
+     */
+    private static int toOrientation(float[] values) {
+        float x = -values[0];
+        float y = -values[1];
+        float z = -values[2];
+        // The device is too flat to tell its orientation
+        if ((x * x + y * y) * 4 < z * z) {
+            return ORIENTATION_UNKNOWN;
+        }
+        int orientation = 90 - Math.round((float) Math.toDegrees(Math.atan2(-y, x)));
+        return (orientation % 360 + 360) % 360;
+    }
+
+    private static int toBucket(int orientation) {
+        return (orientation + 45) / 90 * 90 % 360;
+    }
+}
@@ -0,0 +1,541 @@
+package codes.evo.snapshotlib.utils;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Appends snapshots one after another to big segment files, so a save costs no file creation.
+ * Every segment has an index file with the name, the offset and the length of its snapshots,
+ * the data is written before its index record, so a snapshot is only found once it's complete.
+ * A segment file is deleted once every snapshot in it was removed. Once removed snapshots take
+ * most of a full segment, the rest are moved to the active one on the I/O lane and the segment is deleted
+ */
+class PackFileStorage {
+
+    private static final String TAG = "PackFileStorage";
+    private static final String SEGMENT_EXT = ".pack";
+    private static final String INDEX_EXT = ".idx";
+    private static final int INDEX_VERSION = 1;
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    // Snapshots moved at once, saves wait for one step of the compaction at most
+    private static final int COMPACTION_STEP_SIZE = 4;
+
+    private static final class Location {
+
+        final int mSegmentId;
+        final long mOffset;
+        final int mLength;
+
+        Location(int segmentId, long offset, int length) {
+            mSegmentId = segmentId;
+            mOffset = offset;
+            mLength = length;
+        }
+    }
+
+    private static final class Segment {
+
+        int mLiveCount;
+        long mLiveBytes;
+        // Bytes of the file, removed snapshots included
+        long mLength;
+        // End of the last snapshot in the index, removed ones included
+        long mAppendedLength;
+    }
+
+    private final File mDir;
+    private final long mMaxSegmentSize;
+    private final Map<String, Location> mLocations = new HashMap<>();
+    // Usage of every segment, in the order of segments
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<>();
+    private final Map<Integer, FileChannel> mReadChannels = new HashMap<>();
+    // Segments which wait for the compaction, the oldest first
+    private final TreeSet<Integer> mSegmentsToCompact = new TreeSet<>();
+
+    private final Runnable mCompactTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PackFileStorage.this) {
+                // Cleared when the storage was closed
+                if (mIsCompactionPosted) {
+                    mIsCompactionPosted = false;
+                    compactStep();
+                }
+            }
+        }
+    };
+
+    private boolean mIsLoaded;
+    private int mActiveSegmentId = -1;
+    private long mActiveSegmentLength;
+    private FileOutputStream mSegmentOut;
+    private DataOutputStream mIndexOut;
+    @Nullable
+    private BackgroundWorker.Client mIoClient;
+    private boolean mIsCompactionPosted;
+
+    PackFileStorage(File dir) {
+        this(dir, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param maxSegmentSize a new segment is started once the active one is this big
+     */
+    PackFileStorage(File dir, long maxSegmentSize) {
+        mDir = dir;
+        mMaxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * @param ioClient client which runs the compaction, segments are not compacted without it
+     */
+    synchronized void setIoClient(@Nullable BackgroundWorker.Client ioClient) {
+        mIoClient = ioClient;
+        postCompactionIfNeeded();
+    }
+
+    synchronized void append(String name, byte[] data, int length) throws IOException {
+        long offset = prepareSegment();
+        try {
+            mSegmentOut.write(data, 0, length);
+        } catch (IOException e) {
+            closeActiveSegment();
+            throw e;
+        }
+        onAppended(name, offset, length);
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer, a direct buffer goes to the segment without a copy on the heap
+     */
+    synchronized void append(String name, ByteBuffer data) throws IOException {
+        long offset = prepareSegment();
+        int length = data.remaining();
+        try {
+            FileChannel channel = mSegmentOut.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } catch (IOException e) {
+            closeActiveSegment();
+            throw e;
+        }
+        onAppended(name, offset, length);
+    }
+
+    synchronized boolean contains(String name) {
+        loadIfNeeded();
+        return mLocations.containsKey(name);
+    }
+
+    /**
+     * @return bytes the segments take on the disk beyond the live snapshots, e.g. of removed ones.
+     * Segments which wait for the compaction are left out, their space is about to be freed
+     */
+    synchronized long getDeadBytes() {
+        loadIfNeeded();
+        long deadBytes = 0;
+        for (Map.Entry<Integer, Segment> entry : mSegments.entrySet()) {
+            if (!mSegmentsToCompact.contains(entry.getKey())) {
+                Segment segment = entry.getValue();
+                deadBytes += segment.mLength - segment.mLiveBytes;
+            }
+        }
+        return deadBytes;
+    }
+
+    /**
+     * @return read-only buffer mapped to the snapshot in its segment, null if there's no such snapshot
+     */
+    @Nullable
+    synchronized ByteBuffer read(String name) throws IOException {
+        loadIfNeeded();
+        Location location = mLocations.get(name);
+        if (location == null) {
+            return null;
+        }
+        FileChannel channel = mReadChannels.get(location.mSegmentId);
+        if (channel == null) {
+            channel = new RandomAccessFile(getSegmentFile(location.mSegmentId), "r").getChannel();
+            mReadChannels.put(location.mSegmentId, channel);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, location.mOffset, location.mLength);
+    }
+
+    /**
+     * A removed snapshot stays in its segment until the segment is deleted or compacted,
+     * the compaction is posted to the I/O lane
+     */
+    synchronized void remove(String name) {
+        loadIfNeeded();
+        Location location = mLocations.remove(name);
+        if (location == null) {
+            return;
+        }
+        writeRemoveRecord(location.mSegmentId, name);
+        onRemoved(location);
+        onSegmentShrunk(location.mSegmentId);
+    }
+
+    /**
+     * Moves a few live snapshots of the oldest segment which waits for the compaction to the active one,
+     * the segment is deleted with its last live snapshot. Every moved snapshot is removed from the index
+     * of the old segment right away, so a compaction which didn't complete leaves no snapshot in two segments
+     *
+     * @return true if more segments or snapshots wait for the compaction
+     */
+    synchronized boolean compactStep() {
+        loadIfNeeded();
+        if (mSegmentsToCompact.isEmpty()) {
+            return false;
+        }
+        int segmentId = mSegmentsToCompact.first();
+        List<String> names = new ArrayList<>(COMPACTION_STEP_SIZE);
+        for (Map.Entry<String, Location> entry : mLocations.entrySet()) {
+            if (entry.getValue().mSegmentId == segmentId && names.size() < COMPACTION_STEP_SIZE) {
+                names.add(entry.getKey());
+            }
+        }
+        Log.d(TAG, "Compacting segment " + segmentId + ", moving " + names.size() + " live snapshots");
+        try {
+            for (String name : names) {
+                // Removes the copy from the index of the old segment as well
+                append(name, read(name));
+            }
+            if (names.isEmpty()) {
+                deleteSegment(segmentId);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to compact segment " + segmentId, e);
+            mSegmentsToCompact.remove(segmentId);
+        }
+        postCompactionIfNeeded();
+        return !mSegmentsToCompact.isEmpty();
+    }
+
+    synchronized void close() {
+        if (mIoClient != null) {
+            mIoClient.removeCallbacks(mCompactTask);
+        }
+        mIoClient = null;
+        mIsCompactionPosted = false;
+        closeActiveSegment();
+        for (FileChannel channel : mReadChannels.values()) {
+            CloseableUtils.close(channel);
+        }
+        mReadChannels.clear();
+    }
+
+    /**
+     * @return offset of the next snapshot in the active segment
+     */
+    private long prepareSegment() throws IOException {
+        loadIfNeeded();
+        if (mSegmentOut != null && mActiveSegmentLength >= mMaxSegmentSize) {
+            closeActiveSegment();
+        }
+        if (mSegmentOut == null) {
+            if (mActiveSegmentId < 0) {
+                mActiveSegmentId = 0;
+            }
+            Segment activeSegment = mSegments.get(mActiveSegmentId);
+            if (getSegmentFile(mActiveSegmentId).length() >= mMaxSegmentSize) {
+                mActiveSegmentId++;
+                if (activeSegment != null) {
+                    onSegmentShrunk(mActiveSegmentId - 1);
+                }
+                activeSegment = null;
+            }
+            // Bytes behind the last indexed snapshot belong to a save which didn't complete.
+            // Removed snapshots stay, their buffers may be still in use
+            mActiveSegmentLength = activeSegment != null ? activeSegment.mAppendedLength : 0;
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                throw new IOException("Cannot create directory: " + mDir);
+            }
+            File segmentFile = getSegmentFile(mActiveSegmentId);
+            RandomAccessFile file = new RandomAccessFile(segmentFile, "rw");
+            try {
+                file.setLength(mActiveSegmentLength);
+            } finally {
+                file.close();
+            }
+            mSegmentOut = new FileOutputStream(segmentFile, true);
+            mIndexOut = openIndex(mActiveSegmentId);
+            if (activeSegment == null) {
+                activeSegment = new Segment();
+                mSegments.put(mActiveSegmentId, activeSegment);
+            }
+            activeSegment.mLength = mActiveSegmentLength;
+        }
+        return mActiveSegmentLength;
+    }
+
+    private void onAppended(String name, long offset, int length) throws IOException {
+        mActiveSegmentLength = offset + length;
+        if (mIndexOut == null) {
+            mIndexOut = openIndex(mActiveSegmentId);
+        }
+        try {
+            mIndexOut.writeByte(RECORD_ADD);
+            writeLocation(mIndexOut, name, offset, length);
+            mIndexOut.flush();
+        } catch (IOException e) {
+            closeActiveSegment();
+            throw e;
+        }
+        Location oldLocation = mLocations.put(name, new Location(mActiveSegmentId, offset, length));
+        Segment segment = mSegments.get(mActiveSegmentId);
+        segment.mLiveCount++;
+        segment.mLiveBytes += length;
+        segment.mLength = mActiveSegmentLength;
+        segment.mAppendedLength = mActiveSegmentLength;
+        if (oldLocation != null) {
+            onOverwritten(name, oldLocation);
+        }
+    }
+
+    /**
+     * A later record of the same segment replaces the old one on reload. The copy in an older segment
+     * is removed from its index, otherwise it would come back once the new copy is removed
+     */
+    private void onOverwritten(String name, Location oldLocation) {
+        onRemoved(oldLocation);
+        if (oldLocation.mSegmentId != mActiveSegmentId) {
+            writeRemoveRecord(oldLocation.mSegmentId, name);
+            onSegmentShrunk(oldLocation.mSegmentId);
+        }
+    }
+
+    /**
+     * Deletes a full segment without live snapshots, queues the compaction once removed snapshots take most of it
+     */
+    private void onSegmentShrunk(int segmentId) {
+        if (segmentId == mActiveSegmentId) {
+            return;
+        }
+        Segment segment = mSegments.get(segmentId);
+        if (segment.mLiveCount == 0) {
+            deleteSegment(segmentId);
+        } else if (segment.mLiveBytes < segment.mLength / 2 && mSegmentsToCompact.add(segmentId)) {
+            postCompactionIfNeeded();
+        }
+    }
+
+    private void postCompactionIfNeeded() {
+        if (!mIsCompactionPosted && mIoClient != null && !mSegmentsToCompact.isEmpty()) {
+            mIsCompactionPosted = true;
+            mIoClient.post(mCompactTask);
+        }
+    }
+
+    private void onRemoved(Location location) {
+        Segment segment = mSegments.get(location.mSegmentId);
+        segment.mLiveCount--;
+        segment.mLiveBytes -= location.mLength;
+    }
+
+    private void writeRemoveRecord(int segmentId, String name) {
+        try {
+            DataOutputStream out = openIndex(segmentId);
+            out.writeByte(RECORD_REMOVE);
+            out.writeUTF(name);
+            out.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to remove " + name + " from segment " + segmentId, e);
+        }
+        if (segmentId == mActiveSegmentId) {
+            closeActiveIndex();
+        }
+    }
+
+    private DataOutputStream openIndex(int segmentId) throws IOException {
+        File indexFile = getIndexFile(segmentId);
+        boolean isNew = !indexFile.exists() || indexFile.length() == 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+        if (isNew) {
+            out.writeInt(INDEX_VERSION);
+        }
+        return out;
+    }
+
+    private void closeActiveIndex() {
+        CloseableUtils.close(mIndexOut);
+        mIndexOut = null;
+    }
+
+    private void closeActiveSegment() {
+        CloseableUtils.close(mSegmentOut);
+        mSegmentOut = null;
+        closeActiveIndex();
+    }
+
+    private void deleteSegment(int segmentId) {
+        CloseableUtils.close(mReadChannels.remove(segmentId));
+        mSegments.remove(segmentId);
+        mSegmentsToCompact.remove(segmentId);
+        if (!getSegmentFile(segmentId).delete() || !getIndexFile(segmentId).delete()) {
+            Log.w(TAG, "Unable to delete segment " + segmentId);
+        }
+    }
+
+    private void loadIfNeeded() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+        File[] indexFiles = mDir.listFiles();
+        if (indexFiles == null) {
+            return;
+        }
+        List<Integer> segmentIds = new ArrayList<>();
+        for (File indexFile : indexFiles) {
+            String fileName = indexFile.getName();
+            if (!fileName.endsWith(INDEX_EXT)) {
+                continue;
+            }
+            try {
+                segmentIds.add(Integer.parseInt(fileName.substring(0, fileName.length() - INDEX_EXT.length())));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Unknown index file " + fileName);
+            }
+        }
+        // The latest segments go first, a name which was saved again lives in the later one
+        Collections.sort(segmentIds, Collections.reverseOrder());
+        for (int segmentId : segmentIds) {
+            loadSegment(segmentId);
+            mActiveSegmentId = Math.max(mActiveSegmentId, segmentId);
+        }
+        for (int segmentId : new ArrayList<>(mSegments.keySet())) {
+            onSegmentShrunk(segmentId);
+        }
+    }
+
+    /**
+     * Snapshots which are not fully in the segment are dropped. When the index ends with an incomplete record,
+     * it's rewritten, so the next records are not appended after it
+     */
+    private void loadSegment(int segmentId) {
+        long segmentLength = getSegmentFile(segmentId).length();
+        Map<String, Location> locations = new HashMap<>();
+        List<String> order = new ArrayList<>();
+        long appendedLength = 0;
+        boolean isDamaged = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(getIndexFile(segmentId))));
+            if (in.readInt() != INDEX_VERSION) {
+                throw new IOException("Unknown index version");
+            }
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                String name = in.readUTF();
+                if (type == RECORD_ADD) {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    if (offset + length <= segmentLength) {
+                        locations.put(name, new Location(segmentId, offset, length));
+                        order.add(name);
+                        appendedLength = Math.max(appendedLength, offset + length);
+                    }
+                } else if (type == RECORD_REMOVE) {
+                    locations.remove(name);
+                } else {
+                    throw new IOException("Unknown record type : " + type);
+                }
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "Index of segment " + segmentId + " ends with an incomplete record");
+            isDamaged = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load the index of segment " + segmentId, e);
+            isDamaged = true;
+        } finally {
+            CloseableUtils.close(in);
+        }
+
+        Segment segment = new Segment();
+        segment.mLength = segmentLength;
+        segment.mAppendedLength = appendedLength;
+        for (String name : order) {
+            Location location = locations.get(name);
+            // A name which was saved again lives in the later segment
+            if (location != null && !mLocations.containsKey(name)) {
+                mLocations.put(name, location);
+                segment.mLiveCount++;
+                segment.mLiveBytes += location.mLength;
+            }
+        }
+        mSegments.put(segmentId, segment);
+        if (isDamaged) {
+            rewriteIndex(segmentId);
+        }
+    }
+
+    private void rewriteIndex(int segmentId) {
+        File indexFile = getIndexFile(segmentId);
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(INDEX_VERSION);
+            for (Map.Entry<String, Location> entry : mLocations.entrySet()) {
+                Location location = entry.getValue();
+                if (location.mSegmentId == segmentId) {
+                    out.writeByte(RECORD_ADD);
+                    writeLocation(out, entry.getKey(), location.mOffset, location.mLength);
+                }
+            }
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(indexFile)) {
+                throw new IOException("Cannot rename " + tmpFile + " to " + indexFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to rewrite the index of segment " + segmentId, e);
+            tmpFile.delete();
+        } finally {
+            CloseableUtils.close(out);
+        }
+    }
+
+    private File getSegmentFile(int segmentId) {
+        return new File(mDir, segmentId + SEGMENT_EXT);
+    }
+
+    private File getIndexFile(int segmentId) {
+        return new File(mDir, segmentId + INDEX_EXT);
+    }
+
+    private static void writeLocation(DataOutputStream out, String name, long offset, int length)
+            throws IOException {
+        out.writeUTF(name);
+        out.writeLong(offset);
+        out.writeInt(length);
+    }
+}
@@ -0,0 +1,283 @@
+package codes.evo.snapshotlib.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps downsampled bitmaps of the latest snapshots, so showing them right after they are saved
+ * needs no file reads and no full-size decoding. {@link SnapshotSaver} fills the cache from the bytes
+ * it has just written. Bitmaps which left the cache are decoded over by the next snapshots once
+ * they are released, so a bitmap is acquired while it's shown and released afterwards.
+ * Register the cache with {@link LocalFileStorage#addOnMediaDeletedListener} so that deleted
+ * snapshots leave it
+ */
+public class SnapshotBitmapCache implements LocalFileStorage.OnMediaDeletedListener {
+
+    private static final String TAG = "SnapshotBitmapCache";
+
+    private final int mTargetSize;
+    private final LruCache<String, Bitmap> mCache;
+    // Guarded by itself, as are the two below. The GC may still take them when the heap runs low
+    private final List<SoftReference<Bitmap>> mReusableBitmaps = new LinkedList<>();
+    private final Map<Bitmap, Integer> mAcquireCounts = new IdentityHashMap<>();
+    // Bitmaps which left the cache while acquired, they are reused once released
+    private final Set<Bitmap> mDetachedBitmaps =
+            Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+
+    /**
+     * @param maxBytes   how many bytes the bitmaps may take
+     * @param targetSize the shorter side of a bitmap is at least this size, unless the image is smaller.
+     *                   Images are scaled down by powers of two
+     */
+    public SnapshotBitmapCache(int maxBytes, int targetSize) {
+        if (maxBytes <= 0 || targetSize <= 0) {
+            throw new IllegalArgumentException("Sizes must be positive : " + maxBytes + ", " + targetSize);
+        }
+        mTargetSize = targetSize;
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    onBitmapRemoved(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return bitmap of the snapshot, it isn't decoded over until {@link #release(Bitmap)}
+     */
+    @Nullable
+    public Bitmap acquire(String snapshotName) {
+        synchronized (mReusableBitmaps) {
+            Bitmap bitmap = mCache.get(snapshotName);
+            if (bitmap != null) {
+                acquireLocked(bitmap);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Decodes the snapshot when it isn't in the cache, a packed one as well as a file
+     *
+     * @return bitmap which should be released, or null if the snapshot cannot be read or decoded
+     * @see #acquire(String)
+     */
+    @Nullable
+    @WorkerThread
+    public Bitmap acquireOrLoad(String snapshotName) {
+        Bitmap bitmap = acquire(snapshotName);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        byte[] jpeg;
+        try {
+            ByteBuffer buffer = LocalFileStorage.readMedia(snapshotName);
+            jpeg = new byte[buffer.remaining()];
+            buffer.get(jpeg);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + snapshotName, e);
+            return null;
+        }
+        bitmap = decode(jpeg, jpeg.length);
+        if (bitmap == null) {
+            return null;
+        }
+        synchronized (mReusableBitmaps) {
+            // Acquired before it's cached, so a full cache doesn't give it away right away
+            acquireLocked(bitmap);
+            mCache.put(snapshotName, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Should be called once for every acquired bitmap, when it's no longer shown
+     */
+    public void release(Bitmap bitmap) {
+        synchronized (mReusableBitmaps) {
+            Integer count = mAcquireCounts.get(bitmap);
+            if (count == null) {
+                throw new IllegalStateException("Bitmap is not acquired");
+            }
+            if (count > 1) {
+                mAcquireCounts.put(bitmap, count - 1);
+                return;
+            }
+            mAcquireCounts.remove(bitmap);
+            if (mDetachedBitmaps.remove(bitmap)) {
+                mReusableBitmaps.add(new SoftReference<>(bitmap));
+            }
+        }
+    }
+
+    /**
+     * Decodes the JPEG and puts it to the cache
+     *
+     * @param length count of valid bytes in the array
+     * @return false if the bytes cannot be decoded
+     */
+    @WorkerThread
+    public boolean put(String snapshotName, byte[] jpeg, int length) {
+        Bitmap bitmap = decode(jpeg, length);
+        if (bitmap == null) {
+            return false;
+        }
+        mCache.put(snapshotName, bitmap);
+        return true;
+    }
+
+    public void remove(String snapshotName) {
+        mCache.remove(snapshotName);
+    }
+
+    @Override
+    public void onMediaDeleted(String name) {
+        remove(name);
+    }
+
+    /**
+     * Drops every bitmap, e.g. when the app is trimming its memory. Acquired bitmaps stay valid
+     * and are not reused
+     */
+    public void clear() {
+        mCache.evictAll();
+        synchronized (mReusableBitmaps) {
+            mReusableBitmaps.clear();
+            mDetachedBitmaps.clear();
+        }
+    }
+
+    private void acquireLocked(Bitmap bitmap) {
+        Integer count = mAcquireCounts.get(bitmap);
+        mAcquireCounts.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    private void onBitmapRemoved(Bitmap bitmap) {
+        if (!bitmap.isMutable()) {
+            return;
+        }
+        synchronized (mReusableBitmaps) {
+            if (mAcquireCounts.containsKey(bitmap)) {
+                mDetachedBitmaps.add(bitmap);
+            } else {
+                mReusableBitmaps.add(new SoftReference<>(bitmap));
+            }
+        }
+    }
+
+    @Nullable
+    private Bitmap decode(byte[] jpeg, int length) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, length, options);
+        if (!prepareOptions(options)) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeByteArray(jpeg, 0, length, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                Log.w(TAG, "Unable to decode the snapshot", e);
+                return null;
+            }
+        }
+        // The reused bitmap didn't suit the image after all, it's dropped
+        Log.w(TAG, "Unable to decode into a reused bitmap");
+        options.inBitmap = null;
+        try {
+            return BitmapFactory.decodeByteArray(jpeg, 0, length, options);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Unable to decode the snapshot", e);
+            return null;
+        }
+    }
+
+    /**
+     * Turns the options after a bounds decoding into the options of the real decoding
+     *
+     * @return false if the bounds couldn't be decoded
+     */
+    private boolean prepareOptions(BitmapFactory.Options options) {
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight);
+        options.inMutable = true;
+        options.inBitmap = takeReusableBitmap(options);
+        return true;
+    }
+
+    private int getSampleSize(int width, int height) {
+        int shortSide = Math.min(width, height);
+        int sampleSize = 1;
+        while (shortSide / (sampleSize * 2) >= mTargetSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    @Nullable
+    private Bitmap takeReusableBitmap(BitmapFactory.Options options) {
+        synchronized (mReusableBitmaps) {
+            Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
+            while (iterator.hasNext()) {
+                Bitmap bitmap = iterator.next().get();
+                if (bitmap == null || bitmap.isRecycled()) {
+                    iterator.remove();
+                } else if (canReuse(bitmap, options)) {
+                    iterator.remove();
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Since KitKat any bitmap which is big enough can be reused, before it the size must be the same
+     * and the image must not be scaled down
+     */
+    private static boolean canReuse(Bitmap bitmap, BitmapFactory.Options options) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int width = options.outWidth / options.inSampleSize;
+            int height = options.outHeight / options.inSampleSize;
+            return width * height * getBytesPerPixel(bitmap.getConfig()) <= getAllocationByteCount(bitmap);
+        }
+        return bitmap.getWidth() == options.outWidth && bitmap.getHeight() == options.outHeight
+                && options.inSampleSize == 1;
+    }
+
+    @TargetApi(19)
+    private static int getAllocationByteCount(Bitmap bitmap) {
+        return bitmap.getAllocationByteCount();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        return config == Bitmap.Config.RGB_565 ? 2 : 4;
+    }
+}
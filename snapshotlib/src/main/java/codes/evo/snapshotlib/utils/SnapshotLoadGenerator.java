@@ -0,0 +1,302 @@
+package codes.evo.snapshotlib.utils;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import codes.evo.snapshotlib.CameraException;
+import codes.evo.snapshotlib.SnapshotMaker;
+
+/**
+ * Drives a {@link SnapshotMaker} through cycles of open, take images, close and saves every image
+ * with {@link SnapshotSaver} on the I/O lane. Together with {@link codes.evo.snapshotlib.SnapshotMakerSynthetic}
+ * it loads the storage and the listeners at a sustained rate without a camera.
+ * The generator becomes the camera listener of the snapshot maker.
+ * Latencies are recorded to {@link CaptureMetrics} by the snapshot maker and the savers
+ */
+public class SnapshotLoadGenerator {
+
+    private static final String TAG = "SnapshotLoadGenerator";
+
+    public interface LoadListener {
+
+        /**
+         * Called on the I/O lane once every cycle is done and every image is saved
+         */
+        void onLoadFinished(SnapshotLoadGenerator generator);
+    }
+
+    private final Context mContext;
+    private final SnapshotMaker mSnapshotMaker;
+    private final BackgroundWorker.Client mBgClient;
+    private final BackgroundWorker.Client mIoClient;
+
+    private int mCycleCount = 1;
+    private int mImagesPerCycle = 1;
+    private long mImageIntervalMillis;
+    private LoadListener mLoadListener;
+    private SnapshotMaker.SnapshotListener mSnapshotListener;
+
+    // Only touched on the camera lane
+    private boolean mIsRunning;
+    private boolean mIsCameraOpen;
+    private int mCycle;
+    private int mCycleRequestedImages;
+    private int mCycleDoneImages;
+    private long mStartNanos;
+    private long mFinishNanos;
+
+    private final AtomicInteger mFailedOpens = new AtomicInteger();
+    private final AtomicInteger mTakenImages = new AtomicInteger();
+    private final AtomicInteger mFailedImages = new AtomicInteger();
+    private final AtomicInteger mSavedImages = new AtomicInteger();
+    private final AtomicInteger mFailedSaves = new AtomicInteger();
+
+    private final Runnable mStartCycleTask = new Runnable() {
+        @Override
+        public void run() {
+            startCycle();
+        }
+    };
+
+    private final Runnable mRequestImageTask = new Runnable() {
+        @Override
+        public void run() {
+            requestImage();
+        }
+    };
+
+    private final SnapshotMaker.CameraListener mCameraListener = new SnapshotMaker.CameraListener() {
+        @Override
+        public void onImageTaken(long requestId, byte[] result, int length) {
+            mTakenImages.incrementAndGet();
+            String name = LocalFileStorage.generateSnapshotName(requestId);
+            SnapshotSaver saver = new SnapshotSaver(result, length, name, null);
+            saver.setSnapshotListener(mSaverListener);
+            mIoClient.post(saver);
+            onImageDone();
+        }
+
+        @Override
+        public void onCaptureFailed(long requestId, Exception e) {
+            mFailedImages.incrementAndGet();
+            if (mIsCameraOpen) {
+                onImageDone();
+            }
+        }
+
+        @Override
+        public void onImageFailed(Exception e, String errMessage) {
+            // Failures of the open camera close it, the cycle goes on from onCameraClosed
+            if (!mIsCameraOpen) {
+                mFailedOpens.incrementAndGet();
+                mBgClient.post(mStartCycleTask);
+            }
+        }
+
+        @Override
+        public void onCameraOpened() {
+            mIsCameraOpen = true;
+            requestImage();
+        }
+
+        @Override
+        public void onCameraClosed() {
+            mIsCameraOpen = false;
+            mBgClient.removeCallbacks(mRequestImageTask);
+            mBgClient.post(mStartCycleTask);
+        }
+    };
+
+    private final SnapshotMaker.SnapshotListener mSaverListener = new SnapshotMaker.SnapshotListener() {
+        @Override
+        public void onImageSaved(String snapshotName, @Nullable String photoPath) {
+            mSavedImages.incrementAndGet();
+            SnapshotMaker.SnapshotListener listener = mSnapshotListener;
+            if (listener != null) {
+                listener.onImageSaved(snapshotName, photoPath);
+            }
+        }
+
+        @Override
+        public void onImageSaveFailed(String snapshotName, Exception e) {
+            mFailedSaves.incrementAndGet();
+            SnapshotMaker.SnapshotListener listener = mSnapshotListener;
+            if (listener != null) {
+                listener.onImageSaveFailed(snapshotName, e);
+            }
+        }
+    };
+
+    /**
+     * @param context        context passed to {@link SnapshotMaker#openCamera(Context)}
+     * @param snapshotMaker  snapshot maker to load
+     * @param worker         worker of the snapshot maker, the generator runs on the lane
+     *                       which handles its camera callbacks
+     */
+    public SnapshotLoadGenerator(Context context, SnapshotMaker snapshotMaker, BackgroundWorker worker) {
+        this(context, snapshotMaker, worker, BackgroundWorker.Lane.CAMERA);
+    }
+
+    public SnapshotLoadGenerator(Context context, SnapshotMaker snapshotMaker, BackgroundWorker worker,
+                                 BackgroundWorker.Lane cameraLane) {
+        mContext = context;
+        mSnapshotMaker = snapshotMaker;
+        mBgClient = worker.getClient(cameraLane);
+        mIoClient = worker.getClient(BackgroundWorker.Lane.IO);
+    }
+
+    /**
+     * @param cycleCount     how many times the camera is opened and closed
+     * @param imagesPerCycle how many images are taken while the camera is open
+     */
+    public void setCycles(int cycleCount, int imagesPerCycle) {
+        if (cycleCount <= 0 || imagesPerCycle <= 0) {
+            throw new IllegalArgumentException("Counts must be positive : " + cycleCount + ", " + imagesPerCycle);
+        }
+        mCycleCount = cycleCount;
+        mImagesPerCycle = imagesPerCycle;
+    }
+
+    /**
+     * @param imagesPerSecond rate of image requests regardless of how fast images come back,
+     *                        0 to request the next image as soon as the previous one is delivered
+     */
+    public void setImageRate(float imagesPerSecond) {
+        if (imagesPerSecond < 0) {
+            throw new IllegalArgumentException("Rate must not be negative : " + imagesPerSecond);
+        }
+        mImageIntervalMillis = imagesPerSecond > 0 ? (long) (1000 / imagesPerSecond) : 0;
+    }
+
+    public void setLoadListener(@Nullable LoadListener listener) {
+        mLoadListener = listener;
+    }
+
+    /**
+     * @param listener gets the result of every save in addition to the counters of the generator
+     */
+    public void setSnapshotListener(@Nullable SnapshotMaker.SnapshotListener listener) {
+        mSnapshotListener = listener;
+    }
+
+    public void start() {
+        mBgClient.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mIsRunning) {
+                    return;
+                }
+                mIsRunning = true;
+                mCycle = 0;
+                mStartNanos = System.nanoTime();
+                mSnapshotMaker.setCameraListener(mCameraListener);
+                startCycle();
+            }
+        });
+    }
+
+    /**
+     * Stops after the current cycle, the listener is notified as usual
+     */
+    public void stop() {
+        mBgClient.post(new Runnable() {
+            @Override
+            public void run() {
+                mCycleCount = Math.min(mCycleCount, mCycle);
+            }
+        });
+    }
+
+    public int getFailedOpenCount() {
+        return mFailedOpens.get();
+    }
+
+    public int getTakenImageCount() {
+        return mTakenImages.get();
+    }
+
+    public int getFailedImageCount() {
+        return mFailedImages.get();
+    }
+
+    public int getSavedImageCount() {
+        return mSavedImages.get();
+    }
+
+    public int getFailedSaveCount() {
+        return mFailedSaves.get();
+    }
+
+    /**
+     * Writes the counters and the latencies of {@link CaptureMetrics} to the log
+     */
+    public void dump() {
+        long elapsedMillis = (mFinishNanos - mStartNanos) / 1000000;
+        Log.i(TAG, "Cycles: " + mCycle + ", failed opens: " + getFailedOpenCount()
+                + ", taken: " + getTakenImageCount() + ", failed: " + getFailedImageCount()
+                + ", saved: " + getSavedImageCount() + ", failed saves: " + getFailedSaveCount()
+                + ", elapsed: " + elapsedMillis + " ms");
+        CaptureMetrics.getInstance().dump();
+    }
+
+    private void startCycle() {
+        if (!mIsRunning) {
+            return;
+        }
+        if (mCycle >= mCycleCount) {
+            finish();
+            return;
+        }
+        mCycle++;
+        mCycleRequestedImages = 0;
+        mCycleDoneImages = 0;
+        try {
+            mSnapshotMaker.openCamera(mContext);
+        } catch (CameraException e) {
+            Log.e(TAG, "Unable to open camera", e);
+            mFailedOpens.incrementAndGet();
+            mBgClient.post(mStartCycleTask);
+        }
+    }
+
+    private void requestImage() {
+        if (!mIsCameraOpen || mCycleRequestedImages >= mImagesPerCycle) {
+            return;
+        }
+        mCycleRequestedImages++;
+        mSnapshotMaker.takeImage();
+        if (mImageIntervalMillis > 0) {
+            mBgClient.postDelayed(mRequestImageTask, mImageIntervalMillis);
+        }
+    }
+
+    private void onImageDone() {
+        mCycleDoneImages++;
+        if (mCycleDoneImages >= mImagesPerCycle) {
+            mSnapshotMaker.closeCamera();
+        } else if (mImageIntervalMillis == 0) {
+            requestImage();
+        }
+    }
+
+    /**
+     * The I/O lane runs the savers in order, so the listener is notified after the last image is written
+     */
+    private void finish() {
+        mIsRunning = false;
+        mIoClient.post(new Runnable() {
+            @Override
+            public void run() {
+                mFinishNanos = System.nanoTime();
+                dump();
+                LoadListener listener = mLoadListener;
+                if (listener != null) {
+                    listener.onLoadFinished(SnapshotLoadGenerator.this);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,406 @@
+package codes.evo.snapshotlib.utils;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of saved snapshots, so the latest ones are found without listing the media directories.
+ * Every change appends a small record to the manifest file, the index is loaded from the file on first use.
+ * Once outdated records outnumber the live ones, the file is rewritten with the live ones only.
+ * A file of an unknown version is renamed aside, so a newer version of the app can still read it.
+ * Snapshots saved before the manifest existed are not in the index
+ */
+public class SnapshotManifest {
+
+    private static final String TAG = "SnapshotManifest";
+    private static final String UNREADABLE_EXT = ".unreadable";
+    private static final int FILE_VERSION = 1;
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int MIN_COMPACTION_RECORD_COUNT = 256;
+
+    public static final class Entry {
+
+        private final String mName;
+        private final long mTimestampMillis;
+        private final long mSize;
+        private final int mOrientation;
+        private final int mWidth;
+        private final int mHeight;
+
+        Entry(String name, long timestampMillis, long size, int orientation, int width, int height) {
+            mName = name;
+            mTimestampMillis = timestampMillis;
+            mSize = size;
+            mOrientation = orientation;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getPath() {
+            return LocalFileStorage.getPhotoFilePath(mName);
+        }
+
+        /**
+         * @return value of {@link System#currentTimeMillis()} when the snapshot was saved
+         */
+        public long getTimestampMillis() {
+            return mTimestampMillis;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return clockwise rotation of the image in degrees, 0 if it's unknown
+         */
+        public int getOrientation() {
+            return mOrientation;
+        }
+
+        /**
+         * @return width of the image, 0 if it's unknown
+         */
+        public int getWidth() {
+            return mWidth;
+        }
+
+        /**
+         * @return height of the image, 0 if it's unknown
+         */
+        public int getHeight() {
+            return mHeight;
+        }
+    }
+
+    private final File mFile;
+    // Order of saves, entries which were removed or saved again stay here until the next compaction
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final Map<String, Entry> mIndex = new HashMap<>();
+
+    // Entries before it are all outdated, so the oldest snapshots are found without scanning them
+    private int mOldestIndex;
+    private boolean mIsLoaded;
+    private long mTotalSize;
+    private int mRecordCount;
+    private DataOutputStream mOut;
+
+    public SnapshotManifest(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Adds a saved snapshot, a snapshot with the same name is replaced
+     */
+    public synchronized void add(String name, long timestampMillis, long size, int orientation,
+                                 int width, int height) {
+        loadIfNeeded();
+        Entry entry = new Entry(name, timestampMillis, size, orientation, width, height);
+        putEntry(entry);
+        try {
+            DataOutputStream out = getOutput();
+            out.writeByte(RECORD_ADD);
+            writeEntry(out, entry);
+            out.flush();
+            mRecordCount++;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to add " + name + " to the manifest", e);
+            closeOutput();
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes a deleted snapshot
+     */
+    public synchronized void remove(String name) {
+        loadIfNeeded();
+        if (!removeEntry(name)) {
+            return;
+        }
+        try {
+            DataOutputStream out = getOutput();
+            out.writeByte(RECORD_REMOVE);
+            out.writeUTF(name);
+            out.flush();
+            mRecordCount++;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to remove " + name + " from the manifest", e);
+            closeOutput();
+        }
+        compactIfNeeded();
+    }
+
+    @Nullable
+    public synchronized Entry get(String name) {
+        loadIfNeeded();
+        return mIndex.get(name);
+    }
+
+    /**
+     * @return count of snapshots in the index
+     */
+    public synchronized int size() {
+        loadIfNeeded();
+        return mIndex.size();
+    }
+
+    /**
+     * @return sum of the sizes of snapshots in the index, it's tracked as they are added and removed
+     */
+    public synchronized long getTotalSize() {
+        loadIfNeeded();
+        return mTotalSize;
+    }
+
+    /**
+     * @return at most {@code count} snapshots which were saved last, the latest one first
+     */
+    public synchronized List<Entry> getLatest(int count) {
+        loadIfNeeded();
+        List<Entry> result = new ArrayList<>(Math.min(count, mIndex.size()));
+        for (int i = mEntries.size() - 1; i >= 0 && result.size() < count; i--) {
+            Entry entry = mEntries.get(i);
+            if (isLive(entry)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return snapshots saved at the given time or later, the latest one first
+     */
+    public synchronized List<Entry> getSince(long timestampMillis) {
+        loadIfNeeded();
+        List<Entry> result = new ArrayList<>();
+        // The clock may go back between saves, so the order of saves is not relied on
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Entry entry = mEntries.get(i);
+            if (entry.getTimestampMillis() >= timestampMillis && isLive(entry)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return at most {@code count} snapshots which were saved first, the oldest one first
+     */
+    public synchronized List<Entry> getOldest(int count) {
+        loadIfNeeded();
+        while (mOldestIndex < mEntries.size() && !isLive(mEntries.get(mOldestIndex))) {
+            mOldestIndex++;
+        }
+        List<Entry> result = new ArrayList<>(Math.min(count, mIndex.size()));
+        for (int i = mOldestIndex; i < mEntries.size() && result.size() < count; i++) {
+            Entry entry = mEntries.get(i);
+            if (isLive(entry)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return every snapshot in the order of saves, the oldest one first
+     */
+    public synchronized List<Entry> getAll() {
+        loadIfNeeded();
+        List<Entry> result = new ArrayList<>(mIndex.size());
+        for (Entry entry : mEntries) {
+            if (isLive(entry)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Closes the file, the next change opens it again
+     */
+    public synchronized void close() {
+        closeOutput();
+    }
+
+    private boolean isLive(Entry entry) {
+        return mIndex.get(entry.getName()) == entry;
+    }
+
+    private void putEntry(Entry entry) {
+        mEntries.add(entry);
+        Entry oldEntry = mIndex.put(entry.getName(), entry);
+        if (oldEntry != null) {
+            mTotalSize -= oldEntry.getSize();
+        }
+        mTotalSize += entry.getSize();
+    }
+
+    private boolean removeEntry(String name) {
+        Entry entry = mIndex.remove(name);
+        if (entry == null) {
+            return false;
+        }
+        mTotalSize -= entry.getSize();
+        return true;
+    }
+
+    private DataOutputStream getOutput() throws IOException {
+        if (mOut == null) {
+            boolean isNew = !mFile.exists() || mFile.length() == 0;
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+            if (isNew) {
+                mOut.writeInt(FILE_VERSION);
+                mRecordCount = 0;
+            }
+        }
+        return mOut;
+    }
+
+    private void closeOutput() {
+        CloseableUtils.close(mOut);
+        mOut = null;
+    }
+
+    private void compactIfNeeded() {
+        if (mRecordCount >= MIN_COMPACTION_RECORD_COUNT && mRecordCount > 2 * mIndex.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the file with the live snapshots only, in the order of saves
+     */
+    private void compact() {
+        List<Entry> entries = new ArrayList<>(mIndex.size());
+        for (Entry entry : mEntries) {
+            if (isLive(entry)) {
+                entries.add(entry);
+            }
+        }
+        mEntries.clear();
+        mEntries.addAll(entries);
+        mOldestIndex = 0;
+        closeOutput();
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(FILE_VERSION);
+            for (Entry entry : entries) {
+                out.writeByte(RECORD_ADD);
+                writeEntry(out, entry);
+            }
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(mFile)) {
+                throw new IOException("Cannot rename " + tmpFile + " to " + mFile);
+            }
+            mRecordCount = entries.size();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to compact the manifest", e);
+            tmpFile.delete();
+        } finally {
+            CloseableUtils.close(out);
+        }
+    }
+
+    /**
+     * A record which was cut off, e.g. when the process died while writing it, is dropped
+     * and the file is rewritten without it
+     */
+    private void loadIfNeeded() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+
+        boolean isDamaged = false;
+        boolean isUnreadable = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            int version = in.readInt();
+            if (version != FILE_VERSION) {
+                throw new IOException("Unknown manifest version : " + version);
+            }
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                if (type == RECORD_ADD) {
+                    putEntry(readEntry(in));
+                } else if (type == RECORD_REMOVE) {
+                    removeEntry(in.readUTF());
+                } else {
+                    throw new IOException("Unknown record type : " + type);
+                }
+                mRecordCount++;
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "Manifest ends with an incomplete record");
+            isDamaged = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load the manifest", e);
+            isUnreadable = true;
+        } finally {
+            CloseableUtils.close(in);
+        }
+
+        if (isUnreadable) {
+            // Compaction would overwrite records this version doesn't know
+            File unreadableFile = new File(mFile.getPath() + UNREADABLE_EXT);
+            if (!mFile.renameTo(unreadableFile)) {
+                Log.w(TAG, "Cannot rename " + mFile + " to " + unreadableFile);
+                return;
+            }
+        }
+        if (isDamaged || isUnreadable) {
+            compact();
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeUTF(entry.getName());
+        out.writeLong(entry.getTimestampMillis());
+        out.writeLong(entry.getSize());
+        out.writeShort(entry.getOrientation());
+        out.writeInt(entry.getWidth());
+        out.writeInt(entry.getHeight());
+    }
+
+    private static Entry readEntry(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        long timestampMillis = in.readLong();
+        long size = in.readLong();
+        int orientation = in.readShort();
+        int width = in.readInt();
+        int height = in.readInt();
+        return new Entry(name, timestampMillis, size, orientation, width, height);
+    }
+}
@@ -0,0 +1,446 @@
+package codes.evo.snapshotlib.utils;
+
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import codes.evo.snapshotlib.ImageLease;
+import codes.evo.snapshotlib.SnapshotMaker;
+
+/**
+ * Saves snapshots in three stages: encode, write and notify. Every stage runs on its own threads,
+ * so a slow disk never holds the thread which delivers images.
+ * At most {@code capacity} snapshots are held by the pipeline at once, when it's full
+ * the {@link OverflowPolicy} decides what happens to a new one.
+ * The result of every snapshot is reported through {@link SnapshotMaker.SnapshotListener}
+ */
+public class SnapshotPipeline {
+
+    private static final String TAG = "SnapshotPipeline";
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public enum Stage {
+        ENCODE,
+        WRITE,
+        NOTIFY
+    }
+
+    public enum OverflowPolicy {
+        /**
+         * Waits until the pipeline has room. Stalls the submitting thread, don't use it
+         * on the thread which handles camera callbacks unless the camera must slow down
+         */
+        BLOCK,
+        /**
+         * Drops the oldest snapshot which hasn't been started yet
+         */
+        DROP_OLDEST,
+        /**
+         * Drops the new snapshot
+         */
+        REJECT
+    }
+
+    public interface Encoder {
+
+        /**
+         * Runs on an encode thread before the snapshot is written, e.g. to compress or to watermark it
+         *
+         * @param snapshot snapshot, its bytes can be replaced by {@link Snapshot#setBytes(byte[], int)}
+         */
+        @WorkerThread
+        void encode(Snapshot snapshot) throws IOException;
+    }
+
+    public static class Snapshot {
+
+        private final String mName;
+        private final ByteArrayPool mPool;
+        private final long mCaptureRequestedNanos;
+        private int mWidth;
+        private int mHeight;
+        private int mOrientation;
+        private byte[] mBytes;
+        private int mLength;
+
+        Snapshot(byte[] bytes, int length, String name, @Nullable ByteArrayPool pool,
+                 long captureRequestedNanos) {
+            mBytes = bytes;
+            mLength = length;
+            mName = name;
+            mPool = pool;
+            mCaptureRequestedNanos = captureRequestedNanos;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public byte[] getBytes() {
+            return mBytes;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * Replaces the bytes of the snapshot, the old array is returned to the pool
+         */
+        public void setBytes(byte[] bytes, int length) {
+            if (bytes != mBytes) {
+                releaseBytes();
+            }
+            mBytes = bytes;
+            mLength = length;
+        }
+
+        void releaseBytes() {
+            if (mPool != null && mBytes != null) {
+                mPool.release(mBytes);
+            }
+            mBytes = null;
+        }
+    }
+
+    private final int mCapacity;
+    private final OverflowPolicy mOverflowPolicy;
+    private final Semaphore mPermits;
+    private final LinkedBlockingDeque<Snapshot> mPending = new LinkedBlockingDeque<>();
+    private final ThreadPoolExecutor mEncodeExecutor;
+    private final ThreadPoolExecutor mWriteExecutor;
+    private final ThreadPoolExecutor mNotifyExecutor;
+
+    private volatile Encoder mEncoder;
+    private volatile SnapshotMaker.SnapshotListener mListener;
+    private volatile boolean mIsShutdown;
+
+    private final Runnable mEncodeTask = new Runnable() {
+        @Override
+        public void run() {
+            // Every submitted snapshot posts one task, a task may find nothing if its snapshot was dropped
+            Snapshot snapshot = mPending.pollFirst();
+            if (snapshot != null) {
+                encode(snapshot);
+            }
+        }
+    };
+
+    /**
+     * @param capacity       how many snapshots the pipeline holds at most, from submitting until written
+     * @param overflowPolicy what to do with a snapshot which doesn't fit
+     */
+    public SnapshotPipeline(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive : " + capacity);
+        }
+        mCapacity = capacity;
+        mOverflowPolicy = overflowPolicy;
+        mPermits = new Semaphore(capacity);
+        mEncodeExecutor = createExecutor(Stage.ENCODE, 1);
+        mWriteExecutor = createExecutor(Stage.WRITE, 1);
+        mNotifyExecutor = createExecutor(Stage.NOTIFY, 1);
+    }
+
+    public void setEncoder(@Nullable Encoder encoder) {
+        mEncoder = encoder;
+    }
+
+    public void setSnapshotListener(@Nullable SnapshotMaker.SnapshotListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets how many threads run the stage. Notifications are delivered in order only
+     * when the notify stage has a single thread
+     */
+    public void setParallelism(Stage stage, int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive : " + threadCount);
+        }
+        ThreadPoolExecutor executor = getExecutor(stage);
+        if (threadCount > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threadCount);
+            executor.setCorePoolSize(threadCount);
+        } else {
+            executor.setCorePoolSize(threadCount);
+            executor.setMaximumPoolSize(threadCount);
+        }
+    }
+
+    public boolean submit(byte[] snapshotBytes, String snapshotName) {
+        return submit(snapshotBytes, snapshotBytes.length, snapshotName, null);
+    }
+
+    /**
+     * Copies the image to an array and releases the lease right away
+     *
+     * @param pool pool to borrow the array from, may be null
+     * @see #submit(byte[], int, String, ByteArrayPool)
+     */
+    public boolean submit(ImageLease lease, String snapshotName, @Nullable ByteArrayPool pool) {
+        Snapshot snapshot;
+        try {
+            byte[] bytes = pool != null ? lease.toByteArray(pool) : lease.toByteArray();
+            snapshot = new Snapshot(bytes, lease.getSize(), snapshotName, pool,
+                    lease.getCaptureRequestedNanos());
+            snapshot.mWidth = lease.getWidth();
+            snapshot.mHeight = lease.getHeight();
+            snapshot.mOrientation = lease.getOrientation();
+        } finally {
+            lease.release();
+        }
+        return submit(snapshot);
+    }
+
+    /**
+     * @param snapshotBytes  array with the snapshot, e.g. borrowed from the pool
+     * @param snapshotLength count of valid bytes in the array
+     * @param snapshotName   name of the snapshot file
+     * @param pool           pool the array is returned to once it's written, may be null
+     * @return false if the snapshot was not accepted, the listener is notified about it as well
+     */
+    public boolean submit(byte[] snapshotBytes, int snapshotLength, String snapshotName,
+                          @Nullable ByteArrayPool pool) {
+        return submit(new Snapshot(snapshotBytes, snapshotLength, snapshotName, pool, 0));
+    }
+
+    private boolean submit(Snapshot snapshot) {
+        if (mIsShutdown) {
+            finish(snapshot, new RejectedExecutionException("Pipeline is shut down"));
+            return false;
+        }
+        if (!mPermits.tryAcquire()) {
+            switch (mOverflowPolicy) {
+                case BLOCK:
+                    try {
+                        mPermits.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        finish(snapshot, new RejectedExecutionException("Interrupted while waiting for the pipeline"));
+                        return false;
+                    }
+                    break;
+
+                case DROP_OLDEST:
+                    // The permit of the dropped snapshot goes to the new one
+                    Snapshot oldest = mPending.pollFirst();
+                    if (oldest == null) {
+                        finish(snapshot, new RejectedExecutionException("Pipeline is full"));
+                        return false;
+                    }
+                    Log.w(TAG, "Drop snapshot " + oldest.getName());
+                    finish(oldest, new RejectedExecutionException("Dropped in favor of a newer snapshot"));
+                    break;
+
+                case REJECT:
+                    finish(snapshot, new RejectedExecutionException("Pipeline is full"));
+                    return false;
+            }
+        }
+
+        mPending.addLast(snapshot);
+        try {
+            mEncodeExecutor.execute(mEncodeTask);
+        } catch (RejectedExecutionException e) {
+            // Shut down in the meantime, the snapshot may have been taken by a task which was posted before
+            if (mPending.removeLastOccurrence(snapshot)) {
+                complete(snapshot, e);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return count of snapshots which are held by the pipeline right now
+     */
+    public int getPendingCount() {
+        return mCapacity - mPermits.availablePermits();
+    }
+
+    /**
+     * Stops the threads once the submitted snapshots are saved and notified, new snapshots are rejected
+     * through the listener. Returns right away, the stages are stopped one after another on another thread
+     */
+    public void shutdown() {
+        if (mIsShutdown) {
+            return;
+        }
+        mIsShutdown = true;
+        mEncodeExecutor.shutdown();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // A stage may still hand snapshots to the next one until it's terminated
+                awaitTermination(mEncodeExecutor);
+                mWriteExecutor.shutdown();
+                awaitTermination(mWriteExecutor);
+                mNotifyExecutor.shutdown();
+            }
+        }, TAG + "-shutdown");
+        thread.start();
+    }
+
+    /**
+     * Waits until every stage has stopped after {@link #shutdown()}
+     *
+     * @return false if the time ran out
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mNotifyExecutor.awaitTermination(timeout, unit);
+    }
+
+    private void encode(final Snapshot snapshot) {
+        Encoder encoder = mEncoder;
+        if (encoder != null) {
+            try {
+                encoder.encode(snapshot);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Unable to encode snapshot " + snapshot.getName(), e);
+                complete(snapshot, e);
+                return;
+            }
+        }
+
+        try {
+            mWriteExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(snapshot);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Unable to write snapshot " + snapshot.getName(), e);
+            complete(snapshot, e);
+        }
+    }
+
+    private void write(Snapshot snapshot) {
+        CaptureMetrics metrics = CaptureMetrics.getInstance();
+        long saveStartNanos = System.nanoTime();
+        Exception error = null;
+        try {
+            LocalFileStorage.saveMediaBytes(snapshot.getBytes(), snapshot.getLength(), snapshot.getName(),
+                    snapshot.mWidth, snapshot.mHeight, snapshot.mOrientation);
+            metrics.recordSince(CaptureMetrics.Phase.SAVE, saveStartNanos);
+            metrics.recordSince(CaptureMetrics.Phase.SHUTTER_TO_DISK, snapshot.mCaptureRequestedNanos);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Unable to write snapshot " + snapshot.getName(), e);
+            error = e;
+        } finally {
+            complete(snapshot, error);
+        }
+    }
+
+    /**
+     * Frees the slot of a snapshot which has passed through the pipeline
+     */
+    private void complete(Snapshot snapshot, @Nullable Exception error) {
+        try {
+            finish(snapshot, error);
+        } finally {
+            mPermits.release();
+        }
+    }
+
+    private void finish(Snapshot snapshot, @Nullable Exception error) {
+        if (error != null) {
+            CaptureMetrics.getInstance().recordSaveFailure();
+        }
+        snapshot.releaseBytes();
+        notify(snapshot, error);
+    }
+
+    private void notify(final Snapshot snapshot, @Nullable final Exception error) {
+        final SnapshotMaker.SnapshotListener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        Runnable notifyTask = new Runnable() {
+            @Override
+            public void run() {
+                if (error != null) {
+                    listener.onImageSaveFailed(snapshot.getName(), error);
+                } else {
+                    listener.onImageSaved(snapshot.getName(),
+                            LocalFileStorage.getSavedPhotoPath(snapshot.getName()));
+                }
+            }
+        };
+        try {
+            mNotifyExecutor.execute(notifyTask);
+        } catch (RejectedExecutionException e) {
+            // Shut down, the snapshot is rejected on the submitting thread
+            notifyTask.run();
+        }
+    }
+
+    private static void awaitTermination(ThreadPoolExecutor executor) {
+        try {
+            while (!executor.awaitTermination(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Waiting for the snapshots to pass the stage");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ThreadPoolExecutor getExecutor(Stage stage) {
+        switch (stage) {
+            case ENCODE:
+                return mEncodeExecutor;
+            case WRITE:
+                return mWriteExecutor;
+            default:
+                return mNotifyExecutor;
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor(Stage stage, int threadCount) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new StageThreadFactory(stage));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        StageThreadFactory(Stage stage) {
+            mName = TAG + "-" + stage.name().toLowerCase(Locale.US) + "-";
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + mCount.incrementAndGet());
+            thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                @Override
+                public void uncaughtException(Thread t, Throwable ex) {
+                    Log.e(TAG, t.getName() + " thread dead", ex);
+                }
+            });
+            return thread;
+        }
+    }
+}
@@ -1,30 +1,107 @@
 package codes.evo.snapshotlib.utils;
 
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
 import codes.evo.snapshotlib.SnapshotMaker;
 
 public class SnapshotSaver implements Runnable {
 
     private final byte[] mSnapshotBytes;
+    private final int mSnapshotLength;
     private final String mSnapshotName;
+    private final ByteArrayPool mPool;
 
     private SnapshotMaker.SnapshotListener mListener;
+    private long mCaptureRequestedNanos;
+    private int mWidth;
+    private int mHeight;
+    private int mOrientation;
+    private SnapshotBitmapCache mBitmapCache;
 
     public SnapshotSaver(byte[] snapshotBytes, String snapshotName) {
+        this(snapshotBytes, snapshotBytes.length, snapshotName, null);
+    }
+
+    /**
+     * @param snapshotBytes  array with the snapshot, e.g. borrowed from the pool
+     * @param snapshotLength count of valid bytes in the array
+     * @param snapshotName   name of the snapshot file
+     * @param pool           pool the array is returned to once it's written, may be null
+     */
+    public SnapshotSaver(byte[] snapshotBytes, int snapshotLength, String snapshotName,
+                         @Nullable ByteArrayPool pool) {
         mSnapshotBytes = snapshotBytes;
+        mSnapshotLength = snapshotLength;
         mSnapshotName = snapshotName;
+        mPool = pool;
     }
 
     public void setSnapshotListener(SnapshotMaker.SnapshotListener listener) {
         mListener = listener;
     }
 
+    /**
+     * @param captureRequestedNanos request time of the image, see {@link codes.evo.snapshotlib.ImageLease#getCaptureRequestedNanos()}
+     */
+    public void setCaptureRequestedNanos(long captureRequestedNanos) {
+        mCaptureRequestedNanos = captureRequestedNanos;
+    }
+
+    /**
+     * Size and orientation of the image for {@link SnapshotManifest}, they are 0 unless set
+     */
+    public void setImageInfo(int width, int height, int orientation) {
+        mWidth = width;
+        mHeight = height;
+        mOrientation = orientation;
+    }
+
+    /**
+     * @param cache cache which gets the bitmap of the snapshot once it's written, before the listener is notified
+     */
+    public void setBitmapCache(@Nullable SnapshotBitmapCache cache) {
+        mBitmapCache = cache;
+    }
+
     @Override
     public void run() {
-        LocalFileStorage.saveMediaBytes(mSnapshotBytes, mSnapshotName);
+        CaptureMetrics metrics = CaptureMetrics.getInstance();
+        long saveStartNanos = System.nanoTime();
+        Exception error = null;
+        try {
+            try {
+                LocalFileStorage.saveMediaBytes(mSnapshotBytes, mSnapshotLength, mSnapshotName,
+                        mWidth, mHeight, mOrientation);
+            } catch (IOException | RuntimeException e) {
+                // E.g. a SecurityException, the listener still hears about the snapshot
+                error = e;
+            }
 
-        String photoPath = LocalFileStorage.getPhotoFilePath(mSnapshotName);
-        if (mListener != null) {
-            mListener.onImageSaved(photoPath);
+            if (error != null) {
+                metrics.recordSaveFailure();
+            } else {
+                metrics.recordSince(CaptureMetrics.Phase.SAVE, saveStartNanos);
+                metrics.recordSince(CaptureMetrics.Phase.SHUTTER_TO_DISK, mCaptureRequestedNanos);
+                if (mBitmapCache != null) {
+                    // The bytes are still in hand, so the file isn't read back
+                    mBitmapCache.put(mSnapshotName, mSnapshotBytes, mSnapshotLength);
+                }
+            }
+        } finally {
+            if (mPool != null) {
+                mPool.release(mSnapshotBytes);
+            }
+        }
+
+        if (mListener == null) {
+            return;
+        }
+        if (error != null) {
+            mListener.onImageSaveFailed(mSnapshotName, error);
+        } else {
+            mListener.onImageSaved(mSnapshotName, LocalFileStorage.getSavedPhotoPath(mSnapshotName));
         }
     }
 }
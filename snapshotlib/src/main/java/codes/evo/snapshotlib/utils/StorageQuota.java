@@ -0,0 +1,262 @@
+package codes.evo.snapshotlib.utils;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the bytes and the count of snapshots kept by {@link LocalFileStorage}. The usage comes from
+ * {@link SnapshotManifest}, which tracks it in memory, so the directories are never listed.
+ * Space of deleted packed snapshots counts until their segment is deleted or compacted.
+ * When a save goes over the quota, snapshots are deleted on the I/O lane a few at a time,
+ * saves which come in the meantime are written in between and never wait for the eviction.
+ * Snapshots are kept in the order of eviction, so a batch takes them from the head without sorting
+ */
+public class StorageQuota {
+
+    private static final String TAG = "StorageQuota";
+    private static final int EVICTION_BATCH_SIZE = 16;
+
+    public enum EvictionPolicy {
+        /**
+         * Deletes snapshots in the order they were saved
+         */
+        OLDEST_FIRST,
+        /**
+         * Deletes snapshots which were read the longest time ago, a snapshot which was never read
+         * counts as read when it was saved. Reads are reported by {@link #onSnapshotRead(String)}
+         * and are forgotten when the process dies
+         */
+        LEAST_RECENTLY_READ
+    }
+
+    private final BackgroundWorker.Client mIoClient;
+    private final long mMaxBytes;
+    private final int mMaxCount;
+
+    private volatile EvictionPolicy mEvictionPolicy = EvictionPolicy.OLDEST_FIRST;
+    // Names in the order of the last save or read, the least recently used one first. Guarded by itself
+    private final LinkedHashSet<String> mUseOrder = new LinkedHashSet<>();
+    // Guarded by mUseOrder, snapshots saved before the quota are added once the eviction needs them
+    private boolean mIsUseOrderLoaded;
+    // Guarded by mUseOrder, snapshots which couldn't be deleted are skipped until the snapshots are within the quota
+    private final Set<String> mUndeletableNames = new HashSet<>();
+    private final AtomicBoolean mIsEvictionPosted = new AtomicBoolean();
+    private final AtomicInteger mEvictedCount = new AtomicInteger();
+
+    private final Runnable mEvictTask = new Runnable() {
+        @Override
+        public void run() {
+            mIsEvictionPosted.set(false);
+            evictBatch();
+        }
+    };
+
+    private final Runnable mCheckTask = new Runnable() {
+        @Override
+        public void run() {
+            evictIfNeeded();
+        }
+    };
+
+    /**
+     * @param worker   worker which runs the eviction on its I/O lane
+     * @param maxBytes how many bytes the snapshots may take
+     * @param maxCount how many snapshots may be kept, {@link Integer#MAX_VALUE} for any count
+     */
+    public StorageQuota(BackgroundWorker worker, long maxBytes, int maxCount) {
+        if (maxBytes <= 0 || maxCount <= 0) {
+            throw new IllegalArgumentException("Quota must be positive : " + maxBytes + ", " + maxCount);
+        }
+        mIoClient = worker.getClient(BackgroundWorker.Lane.IO);
+        mMaxBytes = maxBytes;
+        mMaxCount = maxCount;
+    }
+
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        mEvictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Should be called when the app opens a snapshot, can be called on any thread
+     *
+     * @param name name of the snapshot, see {@link SnapshotManifest.Entry#getName()}
+     */
+    public void onSnapshotRead(String name) {
+        touch(name);
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public int getMaxCount() {
+        return mMaxCount;
+    }
+
+    /**
+     * @return count of snapshots deleted by the quota
+     */
+    public int getEvictedCount() {
+        return mEvictedCount.get();
+    }
+
+    void onSnapshotSaved(String name) {
+        touch(name);
+    }
+
+    void onSnapshotDeleted(String name) {
+        synchronized (mUseOrder) {
+            mUseOrder.remove(name);
+            mUndeletableNames.remove(name);
+        }
+    }
+
+    /**
+     * The snapshot is skipped by the next batches, so it doesn't hold up the eviction
+     */
+    void onSnapshotDeleteFailed(String name) {
+        synchronized (mUseOrder) {
+            mUndeletableNames.add(name);
+        }
+    }
+
+    /**
+     * Checks the quota on the I/O lane, so the manifest isn't loaded on the calling thread
+     */
+    void postEvictionCheck() {
+        mIoClient.post(mCheckTask);
+    }
+
+    /**
+     * Posts the eviction to the I/O lane if the snapshots are over the quota
+     */
+    void evictIfNeeded() {
+        SnapshotManifest manifest = LocalFileStorage.getManifest();
+        if (manifest != null && isOverQuota(manifest)) {
+            evictNow();
+        }
+    }
+
+    /**
+     * Posts the eviction even if the snapshots are within the quota, e.g. when the disk is full.
+     * At most one batch is deleted then
+     */
+    void evictNow() {
+        if (mIsEvictionPosted.compareAndSet(false, true)) {
+            mIoClient.post(mEvictTask);
+        }
+    }
+
+    private void evictBatch() {
+        SnapshotManifest manifest = LocalFileStorage.getManifest();
+        if (manifest == null) {
+            return;
+        }
+        List<String> names = getEvictionCandidates(manifest, EVICTION_BATCH_SIZE);
+        // A batch is deleted even within the quota when the eviction was forced
+        boolean isForced = !isOverQuota(manifest);
+        int evictedCount = 0;
+        int failedCount = 0;
+        for (String name : names) {
+            if (!isForced && !isOverQuota(manifest)) {
+                break;
+            }
+            if (!LocalFileStorage.deleteMedia(name)) {
+                Log.w(TAG, "Unable to delete " + name);
+                onSnapshotDeleteFailed(name);
+                failedCount++;
+                continue;
+            }
+            evictedCount++;
+        }
+        mEvictedCount.addAndGet(evictedCount);
+        Log.d(TAG, "Evicted " + evictedCount + " snapshots, " + manifest.size() + " snapshots of "
+                + getUsedBytes(manifest) + " bytes are kept");
+
+        if (names.isEmpty() || !isOverQuota(manifest)) {
+            // Snapshots which couldn't be deleted are tried again by the next eviction
+            synchronized (mUseOrder) {
+                mUndeletableNames.clear();
+            }
+        } else if (evictedCount + failedCount > 0 && !isForced) {
+            // Saves which are posted in the meantime go first
+            evictIfNeeded();
+        }
+    }
+
+    private boolean isOverQuota(SnapshotManifest manifest) {
+        return getUsedBytes(manifest) > mMaxBytes || manifest.size() > mMaxCount;
+    }
+
+    private static long getUsedBytes(SnapshotManifest manifest) {
+        return manifest.getTotalSize() + LocalFileStorage.getPackedDeadBytes();
+    }
+
+    /**
+     * @return names of at most {@code count} snapshots which go first under the current policy,
+     * snapshots which couldn't be deleted are left out
+     */
+    List<String> getEvictionCandidates(SnapshotManifest manifest, int count) {
+        synchronized (mUseOrder) {
+            if (mEvictionPolicy != EvictionPolicy.LEAST_RECENTLY_READ) {
+                List<SnapshotManifest.Entry> entries = manifest.getOldest(count + mUndeletableNames.size());
+                List<String> names = new ArrayList<>(Math.min(count, entries.size()));
+                for (SnapshotManifest.Entry entry : entries) {
+                    if (names.size() < count && !mUndeletableNames.contains(entry.getName())) {
+                        names.add(entry.getName());
+                    }
+                }
+                return names;
+            }
+
+            loadUseOrderIfNeeded(manifest);
+            List<String> names = new ArrayList<>(Math.min(count, mUseOrder.size()));
+            Iterator<String> iterator = mUseOrder.iterator();
+            while (iterator.hasNext() && names.size() < count) {
+                String name = iterator.next();
+                if (manifest.get(name) == null) {
+                    // E.g. a snapshot which was read but isn't in the manifest
+                    iterator.remove();
+                } else if (!mUndeletableNames.contains(name)) {
+                    names.add(name);
+                }
+            }
+            return names;
+        }
+    }
+
+    private void touch(String name) {
+        synchronized (mUseOrder) {
+            mUseOrder.remove(name);
+            mUseOrder.add(name);
+        }
+    }
+
+    /**
+     * Snapshots which are in the manifest and weren't used since the quota was created go first,
+     * in the order of saves, the ones which were used keep their order after them
+     */
+    private void loadUseOrderIfNeeded(SnapshotManifest manifest) {
+        if (mIsUseOrderLoaded) {
+            return;
+        }
+        mIsUseOrderLoaded = true;
+        List<String> usedNames = new ArrayList<>(mUseOrder);
+        mUseOrder.clear();
+        for (SnapshotManifest.Entry entry : manifest.getAll()) {
+            mUseOrder.add(entry.getName());
+        }
+        for (String name : usedNames) {
+            mUseOrder.remove(name);
+            mUseOrder.add(name);
+        }
+    }
+}
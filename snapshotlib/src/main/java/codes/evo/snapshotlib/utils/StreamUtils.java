@@ -4,16 +4,45 @@ import android.support.annotation.WorkerThread;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 class StreamUtils {
 
     @WorkerThread
-    static void save(byte[] data, String path) {
+    static void save(byte[] data, String path) throws IOException {
+        save(data, data.length, path);
+    }
+
+    @WorkerThread
+    static void save(byte[] data, int length, String path) throws IOException {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(path);
+            out.write(data, 0, length);
+            // A failed close may lose written bytes, so it's reported as well
+            out.close();
+            out = null;
+        } finally {
+            CloseableUtils.close(out);
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer through a file channel. A direct buffer,
+     * e.g. a plane of an Image, goes to the file without being copied to the heap
+     */
+    @WorkerThread
+    static void save(ByteBuffer data, String path) throws IOException {
         FileOutputStream out = null;
         try {
             out = new FileOutputStream(path);
-            out.write(data);
-        } catch (IOException ignored) {
+            FileChannel channel = out.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            out.close();
+            out = null;
         } finally {
             CloseableUtils.close(out);
         }
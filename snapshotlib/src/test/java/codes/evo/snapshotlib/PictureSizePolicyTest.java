@@ -0,0 +1,78 @@
+package codes.evo.snapshotlib;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PictureSizePolicyTest {
+
+    private static final List<PictureSize> SIZES = Arrays.asList(
+            new PictureSize(640, 480),
+            new PictureSize(1280, 720),
+            new PictureSize(1920, 1080),
+            new PictureSize(2048, 1536),
+            new PictureSize(4032, 3024),
+            new PictureSize(3840, 2160));
+
+    @Test
+    public void largestTakesTheBiggestArea() {
+        assertEquals(new PictureSize(4032, 3024), PictureSizePolicy.largest().select(SIZES));
+    }
+
+    @Test
+    public void atLeastTakesTheSmallestCoveringSize() {
+        assertEquals(new PictureSize(1920, 1080), PictureSizePolicy.atLeast(1600, 900).select(SIZES));
+        assertEquals(new PictureSize(1280, 720), PictureSizePolicy.atLeast(1280, 720).select(SIZES));
+    }
+
+    @Test
+    public void atLeastComparesTheLongSidesFirst() {
+        // A portrait target matches landscape sizes of the sensor
+        assertEquals(new PictureSize(1920, 1080), PictureSizePolicy.atLeast(900, 1600).select(SIZES));
+    }
+
+    @Test
+    public void atLeastFallsBackToTheLargestSize() {
+        assertEquals(new PictureSize(4032, 3024), PictureSizePolicy.atLeast(8000, 6000).select(SIZES));
+    }
+
+    @Test
+    public void maxMegapixelsTakesTheBiggestSizeWithinTheLimit() {
+        assertEquals(new PictureSize(2048, 1536), PictureSizePolicy.maxMegapixels(5).select(SIZES));
+        assertEquals(new PictureSize(3840, 2160), PictureSizePolicy.maxMegapixels(10).select(SIZES));
+    }
+
+    @Test
+    public void maxMegapixelsFallsBackToTheSmallestSize() {
+        assertEquals(new PictureSize(640, 480), PictureSizePolicy.maxMegapixels(0.1f).select(SIZES));
+    }
+
+    @Test
+    public void byComparatorTakesTheGreatestSize() {
+        PictureSizePolicy widest = PictureSizePolicy.byComparator(new Comparator<PictureSize>() {
+            @Override
+            public int compare(PictureSize lhs, PictureSize rhs) {
+                return lhs.getWidth() - rhs.getWidth();
+            }
+        });
+        assertEquals(new PictureSize(4032, 3024), widest.select(SIZES));
+    }
+
+    @Test
+    public void aspectRatioNarrowsTheSizesDown() {
+        assertEquals(new PictureSize(3840, 2160),
+                PictureSizePolicy.largest().withAspectRatio(16, 9).select(SIZES));
+        assertEquals(new PictureSize(640, 480),
+                PictureSizePolicy.maxMegapixels(1).withAspectRatio(3, 4).select(SIZES));
+    }
+
+    @Test
+    public void unmatchedAspectRatioIsIgnored() {
+        assertEquals(new PictureSize(4032, 3024),
+                PictureSizePolicy.largest().withAspectRatio(1, 1).select(SIZES));
+    }
+}
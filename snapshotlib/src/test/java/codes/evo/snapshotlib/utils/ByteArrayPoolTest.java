@@ -0,0 +1,97 @@
+package codes.evo.snapshotlib.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ByteArrayPoolTest {
+
+    private static final int MIN = ByteArrayPool.MIN_CLASS_SIZE;
+
+    @Test
+    public void smallLengthsShareTheMinimalClass() {
+        assertEquals(MIN, ByteArrayPool.getClassSize(0));
+        assertEquals(MIN, ByteArrayPool.getClassSize(1));
+        assertEquals(MIN, ByteArrayPool.getClassSize(MIN));
+    }
+
+    @Test
+    public void everyDoublingIsSplitIntoFourClasses() {
+        assertEquals(MIN + MIN / 4, ByteArrayPool.getClassSize(MIN + 1));
+        assertEquals(MIN + MIN / 4, ByteArrayPool.getClassSize(MIN + MIN / 4));
+        assertEquals(MIN + MIN / 2, ByteArrayPool.getClassSize(MIN + MIN / 4 + 1));
+        assertEquals(2 * MIN, ByteArrayPool.getClassSize(2 * MIN));
+        assertEquals(2 * MIN + MIN / 2, ByteArrayPool.getClassSize(2 * MIN + 1));
+    }
+
+    @Test
+    public void classIsAtMostAQuarterBiggerThanTheLength() {
+        for (int length = MIN + 1; length < 64 * MIN; length += 997) {
+            int classSize = ByteArrayPool.getClassSize(length);
+            assertTrue("Class " + classSize + " for " + length, classSize >= length);
+            assertTrue("Class " + classSize + " for " + length, classSize <= length + length / 4);
+        }
+    }
+
+    @Test
+    public void floorClassOfAClassSizeIsTheSameClass() {
+        for (int length = MIN; length < 64 * MIN; length += 997) {
+            int classSize = ByteArrayPool.getClassSize(length);
+            assertEquals(classSize, ByteArrayPool.getFloorClassSize(classSize));
+            assertTrue(ByteArrayPool.getFloorClassSize(length) <= length);
+        }
+    }
+
+    @Test
+    public void releasedArrayIsReusedForTheSameClass() {
+        ByteArrayPool pool = new ByteArrayPool(10 * MIN);
+        byte[] array = pool.acquire(100000);
+        assertEquals(ByteArrayPool.getClassSize(100000), array.length);
+        pool.release(array);
+        assertEquals(array.length, pool.getPooledBytes());
+
+        assertSame(array, pool.acquire(array.length - 1));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void foreignArrayIsFiledUnderTheClassItFills() {
+        ByteArrayPool pool = new ByteArrayPool(10 * MIN);
+        byte[] array = new byte[100000];
+        pool.release(array);
+
+        // Too small for the class of its own length
+        assertNotSame(array, pool.acquire(100000));
+        assertSame(array, pool.acquire(ByteArrayPool.getFloorClassSize(100000)));
+    }
+
+    @Test
+    public void arraysOverTheCapacityAreDropped() {
+        ByteArrayPool pool = new ByteArrayPool(3 * MIN);
+        pool.release(new byte[2 * MIN]);
+        pool.release(new byte[2 * MIN]);
+
+        assertEquals(2 * MIN, pool.getPooledBytes());
+        assertEquals(1, pool.getDropCount());
+    }
+
+    @Test
+    public void arraysBelowTheMinimalClassAreIgnored() {
+        ByteArrayPool pool = new ByteArrayPool(3 * MIN);
+        pool.release(new byte[MIN - 1]);
+        pool.release(null);
+
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(0, pool.getDropCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        new ByteArrayPool(0);
+    }
+}
@@ -0,0 +1,53 @@
+package codes.evo.snapshotlib.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ImageUtilsTest {
+
+    @Test
+    public void planarImageIsInterleaved() {
+        ByteBuffer y = ByteBuffer.wrap(new byte[]{0, 1, 2, 3, 4, 5, 6, 7});
+        ByteBuffer u = ByteBuffer.wrap(new byte[]{10, 11});
+        ByteBuffer v = ByteBuffer.wrap(new byte[]{20, 21});
+
+        byte[] nv21 = ImageUtils.toNv21(4, 2, new ByteBuffer[]{y, u, v}, new int[]{4, 2, 2}, new int[]{1, 1, 1});
+
+        assertArrayEquals(new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 20, 10, 21, 11}, nv21);
+    }
+
+    @Test
+    public void paddedSemiPlanarImageIsRepacked() {
+        // Rows are padded to 6 bytes, the last row of a plane ends without the padding
+        ByteBuffer y = ByteBuffer.wrap(new byte[]{
+                0, 1, 2, 3, 99, 99,
+                4, 5, 6, 7, 99, 99,
+                8, 9, 10, 11, 99, 99,
+                12, 13, 14, 15});
+        // Chroma of a semi-planar image: U and V are views of the same interleaved bytes
+        byte[] chroma = {20, 10, 21, 11, 99, 99, 22, 12, 23, 13};
+        ByteBuffer v = ByteBuffer.wrap(chroma);
+        ByteBuffer u = ByteBuffer.wrap(chroma, 1, chroma.length - 1).slice();
+
+        byte[] nv21 = ImageUtils.toNv21(4, 4, new ByteBuffer[]{y, u, v}, new int[]{6, 6, 6}, new int[]{1, 2, 2});
+
+        assertArrayEquals(new byte[]{
+                0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
+                20, 10, 21, 11, 22, 12, 23, 13}, nv21);
+    }
+
+    @Test
+    public void positionsOfTheBuffersAreKept() {
+        ByteBuffer y = ByteBuffer.wrap(new byte[]{0, 1, 2, 3});
+        ByteBuffer u = ByteBuffer.wrap(new byte[]{10});
+        ByteBuffer v = ByteBuffer.wrap(new byte[]{20});
+
+        ImageUtils.toNv21(2, 2, new ByteBuffer[]{y, u, v}, new int[]{2, 1, 1}, new int[]{1, 1, 1});
+        byte[] nv21 = ImageUtils.toNv21(2, 2, new ByteBuffer[]{y, u, v}, new int[]{2, 1, 1}, new int[]{1, 1, 1});
+
+        assertArrayEquals(new byte[]{0, 1, 2, 3, 20, 10}, nv21);
+    }
+}
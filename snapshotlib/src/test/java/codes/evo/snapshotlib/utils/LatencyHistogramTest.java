@@ -0,0 +1,81 @@
+package codes.evo.snapshotlib.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesHaveBucketsOfTheirOwn() {
+        for (int micros = 0; micros < 16; micros++) {
+            int index = LatencyHistogram.getBucketIndex(micros);
+            assertEquals(micros, index);
+            assertEquals(micros, LatencyHistogram.getBucketUpperBound(index));
+        }
+    }
+
+    @Test
+    public void everyValueFallsIntoItsBucket() {
+        int lastIndex = -1;
+        for (long micros = 0; micros < 10000000; micros += 1 + micros / 100) {
+            int index = LatencyHistogram.getBucketIndex(micros);
+            long upperBound = LatencyHistogram.getBucketUpperBound(index);
+            long lowerBound = index == 0 ? 0 : LatencyHistogram.getBucketUpperBound(index - 1) + 1;
+            assertTrue(micros + " in [" + lowerBound + ", " + upperBound + "]",
+                    lowerBound <= micros && micros <= upperBound);
+            // A bucket is at most a sixteenth of its values wide
+            assertTrue(micros + " in [" + lowerBound + ", " + upperBound + "]",
+                    upperBound - lowerBound <= Math.max(0, lowerBound / 16));
+            assertTrue(index >= lastIndex);
+            lastIndex = index;
+        }
+    }
+
+    @Test
+    public void hugeValuesGoToTheLastBucket() {
+        int lastIndex = LatencyHistogram.getBucketIndex(Long.MAX_VALUE);
+        assertEquals(lastIndex, LatencyHistogram.getBucketIndex(1L << 40));
+        assertTrue(lastIndex > LatencyHistogram.getBucketIndex(1L << 31));
+    }
+
+    @Test
+    public void percentilesAreBoundedByTheBucketWidth() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 100; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50500, histogram.getMeanMicros());
+        assertEquals(100000, histogram.getMaxMicros());
+        assertEquals(50000, histogram.getPercentileMicros(50), 50000 / 16);
+        assertEquals(95000, histogram.getPercentileMicros(95), 95000 / 16);
+        assertEquals(100000, histogram.getPercentileMicros(100));
+        assertTrue(histogram.getPercentileMicros(50) >= 50000);
+    }
+
+    @Test
+    public void negativeLatenciesCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1000);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(99));
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(5));
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanMicros());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(50));
+    }
+}
@@ -0,0 +1,252 @@
+package codes.evo.snapshotlib.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PackFileStorageTest {
+
+    private static final int SNAPSHOT_SIZE = 100;
+    // Ten snapshots fill a segment
+    private static final int MAX_SEGMENT_SIZE = 10 * SNAPSHOT_SIZE;
+
+    private File mDir;
+    private PackFileStorage mStorage;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("packs", null);
+        mDir.delete();
+        mStorage = new PackFileStorage(mDir, MAX_SEGMENT_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mStorage.close();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void appendedSnapshotsAreRead() throws IOException {
+        append(0, 3);
+        mStorage.append("buffer", ByteBuffer.wrap(snapshot(7)));
+
+        assertSnapshots(0, 3);
+        assertSnapshot("buffer", 7);
+        assertTrue(mStorage.contains("n1"));
+        assertFalse(mStorage.contains("missing"));
+        assertNull(mStorage.read("missing"));
+    }
+
+    @Test
+    public void snapshotsSurviveReload() throws IOException {
+        append(0, 25);
+        mStorage.remove("n3");
+        reload();
+
+        assertSnapshots(0, 3);
+        assertSnapshots(4, 25);
+        assertFalse(mStorage.contains("n3"));
+        assertEquals(Arrays.asList("0.idx", "0.pack", "1.idx", "1.pack", "2.idx", "2.pack"), listDir());
+    }
+
+    @Test
+    public void incompleteSnapshotIsDroppedOnReload() throws IOException {
+        append(0, 3);
+        mStorage.close();
+        // The process died in the middle of writing the last snapshot
+        truncate(new File(mDir, "0.pack"), SNAPSHOT_SIZE / 2);
+
+        mStorage = new PackFileStorage(mDir, MAX_SEGMENT_SIZE);
+        assertSnapshots(0, 2);
+        assertFalse(mStorage.contains("n2"));
+
+        // The next snapshot takes the place of the broken one
+        append(3, 4);
+        reload();
+        assertSnapshots(0, 2);
+        assertSnapshots(3, 4);
+        assertEquals(3 * SNAPSHOT_SIZE, new File(mDir, "0.pack").length());
+    }
+
+    @Test
+    public void truncatedIndexRecordIsDropped() throws IOException {
+        append(0, 3);
+        mStorage.close();
+        truncate(new File(mDir, "0.idx"), 2);
+
+        mStorage = new PackFileStorage(mDir, MAX_SEGMENT_SIZE);
+        assertSnapshots(0, 2);
+        assertFalse(mStorage.contains("n2"));
+
+        append(3, 4);
+        reload();
+        assertSnapshots(0, 2);
+        assertSnapshots(3, 4);
+    }
+
+    @Test
+    public void removedSnapshotIsNotOverwritten() throws IOException {
+        append(0, 3);
+        reload();
+        ByteBuffer buffer = mStorage.read("n2");
+        mStorage.remove("n2");
+
+        append(3, 4);
+        assertEquals(4 * SNAPSHOT_SIZE, new File(mDir, "0.pack").length());
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertTrue(Arrays.equals(snapshot(2), bytes));
+    }
+
+    @Test
+    public void fullSegmentWithAnIncompleteSnapshotIsRolled() throws IOException {
+        append(0, 9);
+        mStorage.close();
+        // The process died after the data of the last snapshot, before its index record
+        RandomAccessFile file = new RandomAccessFile(new File(mDir, "0.pack"), "rw");
+        try {
+            file.setLength(MAX_SEGMENT_SIZE);
+        } finally {
+            file.close();
+        }
+
+        mStorage = new PackFileStorage(mDir, MAX_SEGMENT_SIZE);
+        append(9, 10);
+        assertEquals(Arrays.asList("0.idx", "0.pack", "1.idx", "1.pack"), listDir());
+        reload();
+        assertSnapshots(0, 10);
+    }
+
+    @Test
+    public void segmentIsDeletedWithItsLastSnapshot() throws IOException {
+        mStorage.append("big", new byte[MAX_SEGMENT_SIZE], MAX_SEGMENT_SIZE);
+        append(0, 2);
+        mStorage.remove("big");
+
+        assertEquals(Arrays.asList("1.idx", "1.pack"), listDir());
+        assertSnapshots(0, 2);
+        assertEquals(0, mStorage.getDeadBytes());
+    }
+
+    @Test
+    public void mostlyRemovedSegmentIsCompacted() throws IOException {
+        append(0, 15);
+        for (int i = 0; i < 5; i++) {
+            mStorage.remove("n" + i);
+        }
+        assertEquals(5 * SNAPSHOT_SIZE, mStorage.getDeadBytes());
+
+        // Less than half of the first segment is live now, its space is about to be freed
+        mStorage.remove("n5");
+        assertTrue(new File(mDir, "0.pack").exists());
+        assertEquals(0, mStorage.getDeadBytes());
+
+        // The four live snapshots are moved in one step
+        assertFalse(mStorage.compactStep());
+        assertFalse(new File(mDir, "0.pack").exists());
+        assertEquals(0, mStorage.getDeadBytes());
+        assertSnapshots(6, 15);
+
+        reload();
+        assertSnapshots(6, 15);
+        assertFalse(mStorage.contains("n5"));
+    }
+
+    @Test
+    public void snapshotResavedInANewSegmentStaysRemovedAfterReload() throws IOException {
+        append(0, 11);
+        mStorage.append("n0", snapshot(42), SNAPSHOT_SIZE);
+        reload();
+        assertSnapshot("n0", 42);
+
+        mStorage.remove("n0");
+        reload();
+        assertFalse(mStorage.contains("n0"));
+        assertSnapshots(1, 11);
+    }
+
+    @Test
+    public void mostlyRemovedSegmentIsCompactedAfterReload() throws IOException {
+        append(0, 15);
+        mStorage.close();
+        // The process died before the compaction
+        for (int i = 0; i < 6; i++) {
+            mStorage = new PackFileStorage(mDir, MAX_SEGMENT_SIZE);
+            mStorage.remove("n" + i);
+            mStorage.close();
+        }
+
+        mStorage = new PackFileStorage(mDir, MAX_SEGMENT_SIZE);
+        while (mStorage.compactStep()) {
+            // Runs until the segment is deleted
+        }
+        assertFalse(new File(mDir, "0.pack").exists());
+        assertSnapshots(6, 15);
+    }
+
+    private void append(int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            mStorage.append("n" + i, snapshot(i), SNAPSHOT_SIZE);
+        }
+    }
+
+    private void reload() {
+        mStorage.close();
+        mStorage = new PackFileStorage(mDir, MAX_SEGMENT_SIZE);
+    }
+
+    private void assertSnapshots(int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            assertSnapshot("n" + i, i);
+        }
+    }
+
+    private void assertSnapshot(String name, int fill) throws IOException {
+        ByteBuffer buffer = mStorage.read(name);
+        assertNotNull(name, buffer);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertTrue(name, Arrays.equals(snapshot(fill), bytes));
+    }
+
+    private List<String> listDir() {
+        String[] names = mDir.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private static byte[] snapshot(int fill) {
+        byte[] bytes = new byte[SNAPSHOT_SIZE];
+        Arrays.fill(bytes, (byte) fill);
+        return bytes;
+    }
+
+    private static void truncate(File file, int byteCount) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(file.length() - byteCount);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package codes.evo.snapshotlib.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotManifestTest {
+
+    private File mFile;
+    private SnapshotManifest mManifest;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("manifest", null);
+        mFile.delete();
+        mManifest = new SnapshotManifest(mFile);
+    }
+
+    @After
+    public void tearDown() {
+        mManifest.close();
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+        new File(mFile.getPath() + ".unreadable").delete();
+    }
+
+    @Test
+    public void entriesAreIndexedByName() {
+        mManifest.add("a", 1000, 100, 90, 640, 480);
+        mManifest.add("b", 2000, 200, 0, 0, 0);
+
+        SnapshotManifest.Entry entry = mManifest.get("a");
+        assertNotNull(entry);
+        assertEquals(1000, entry.getTimestampMillis());
+        assertEquals(100, entry.getSize());
+        assertEquals(90, entry.getOrientation());
+        assertEquals(640, entry.getWidth());
+        assertEquals(480, entry.getHeight());
+        assertEquals(2, mManifest.size());
+        assertEquals(300, mManifest.getTotalSize());
+    }
+
+    @Test
+    public void savingTheSameNameAgainReplacesTheEntry() {
+        mManifest.add("a", 1000, 100, 0, 0, 0);
+        mManifest.add("b", 2000, 200, 0, 0, 0);
+        mManifest.add("a", 3000, 50, 0, 0, 0);
+
+        assertEquals(2, mManifest.size());
+        assertEquals(250, mManifest.getTotalSize());
+        assertEquals(Arrays.asList("b", "a"), getNames(mManifest.getAll()));
+    }
+
+    @Test
+    public void queriesFollowTheOrderOfSaves() {
+        for (int i = 0; i < 5; i++) {
+            mManifest.add("n" + i, 1000 * i, 10, 0, 0, 0);
+        }
+        mManifest.remove("n1");
+        mManifest.remove("n3");
+
+        assertEquals(Arrays.asList("n4", "n2"), getNames(mManifest.getLatest(2)));
+        assertEquals(Arrays.asList("n0", "n2"), getNames(mManifest.getOldest(2)));
+        assertEquals(Arrays.asList("n4", "n2"), getNames(mManifest.getSince(2000)));
+        assertEquals(Arrays.asList("n0", "n2", "n4"), getNames(mManifest.getAll()));
+    }
+
+    @Test
+    public void changesSurviveReload() {
+        mManifest.add("a", 1000, 100, 0, 0, 0);
+        mManifest.add("b", 2000, 200, 0, 0, 0);
+        mManifest.add("c", 3000, 300, 0, 0, 0);
+        mManifest.remove("b");
+        mManifest.close();
+
+        SnapshotManifest manifest = new SnapshotManifest(mFile);
+        assertEquals(Arrays.asList("a", "c"), getNames(manifest.getAll()));
+        assertEquals(400, manifest.getTotalSize());
+        assertNull(manifest.get("b"));
+        manifest.close();
+    }
+
+    @Test
+    public void truncatedRecordIsDropped() throws IOException {
+        mManifest.add("a", 1000, 100, 0, 0, 0);
+        mManifest.add("b", 2000, 200, 0, 0, 0);
+        mManifest.close();
+        truncate(mFile, 3);
+
+        SnapshotManifest manifest = new SnapshotManifest(mFile);
+        assertEquals(Arrays.asList("a"), getNames(manifest.getAll()));
+        // The file was rewritten, so the next record doesn't follow the broken one
+        manifest.add("c", 3000, 300, 0, 0, 0);
+        manifest.close();
+
+        manifest = new SnapshotManifest(mFile);
+        assertEquals(Arrays.asList("a", "c"), getNames(manifest.getAll()));
+        assertEquals(400, manifest.getTotalSize());
+        manifest.close();
+    }
+
+    @Test
+    public void outdatedRecordsAreCompacted() {
+        mManifest.add("kept", 0, 1, 0, 0, 0);
+        for (int i = 0; i < 1000; i++) {
+            mManifest.add("n" + i, i, 1000, 0, 0, 0);
+            mManifest.remove("n" + i);
+        }
+        mManifest.close();
+
+        // Without the compaction there would be 2001 records
+        assertTrue("Manifest of " + mFile.length() + " bytes", mFile.length() < 20 * 1024);
+        SnapshotManifest manifest = new SnapshotManifest(mFile);
+        assertEquals(Arrays.asList("kept"), getNames(manifest.getAll()));
+        assertEquals(1, manifest.getTotalSize());
+        manifest.close();
+    }
+
+    @Test
+    public void manifestOfUnknownVersionIsKeptAside() throws IOException {
+        mManifest.close();
+        // Written by a newer version of the app
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        out.writeInt(99);
+        out.writeByte(7);
+        out.close();
+        long length = mFile.length();
+
+        SnapshotManifest manifest = new SnapshotManifest(mFile);
+        assertEquals(0, manifest.size());
+        manifest.add("a", 1000, 100, 0, 0, 0);
+        manifest.close();
+
+        File unreadableFile = new File(mFile.getPath() + ".unreadable");
+        assertEquals(length, unreadableFile.length());
+        manifest = new SnapshotManifest(mFile);
+        assertEquals(Arrays.asList("a"), getNames(manifest.getAll()));
+        manifest.close();
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+
+    private static void truncate(File file, int byteCount) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(file.length() - byteCount);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static List<String> getNames(List<SnapshotManifest.Entry> entries) {
+        List<String> names = new ArrayList<>();
+        for (SnapshotManifest.Entry entry : entries) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,168 @@
+package codes.evo.snapshotlib.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import codes.evo.snapshotlib.SnapshotMaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The encoder holds the first snapshot until the test lets it go and then fails every snapshot,
+ * so nothing reaches the disk and the pipeline stays full as long as the test needs it
+ */
+public class SnapshotPipelineTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final CountDownLatch mEncodeStarted = new CountDownLatch(1);
+    private final CountDownLatch mEncodeReleased = new CountDownLatch(1);
+    // Guarded by itself
+    private final Map<String, Exception> mFailures = new HashMap<>();
+
+    private SnapshotPipeline mPipeline;
+
+    private final SnapshotPipeline.Encoder mBlockingEncoder = new SnapshotPipeline.Encoder() {
+        @Override
+        public void encode(SnapshotPipeline.Snapshot snapshot) throws IOException {
+            mEncodeStarted.countDown();
+            try {
+                mEncodeReleased.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Not written in the test");
+        }
+    };
+
+    private final SnapshotMaker.SnapshotListener mListener = new SnapshotMaker.SnapshotListener() {
+        @Override
+        public void onImageSaved(String snapshotName, String photoPath) {
+        }
+
+        @Override
+        public void onImageSaveFailed(String snapshotName, Exception e) {
+            synchronized (mFailures) {
+                mFailures.put(snapshotName, e);
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mFailures.clear();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mEncodeReleased.countDown();
+        if (mPipeline != null) {
+            mPipeline.shutdown();
+            mPipeline.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void rejectDropsTheNewSnapshot() throws InterruptedException {
+        createFullPipeline(SnapshotPipeline.OverflowPolicy.REJECT);
+
+        assertFalse(submit("2"));
+        assertEquals(2, mPipeline.getPendingCount());
+        finish();
+
+        assertFailed("0", IOException.class);
+        assertFailed("1", IOException.class);
+        assertFailed("2", RejectedExecutionException.class);
+    }
+
+    @Test
+    public void dropOldestDropsTheOldestPendingSnapshot() throws InterruptedException {
+        createFullPipeline(SnapshotPipeline.OverflowPolicy.DROP_OLDEST);
+
+        assertTrue(submit("2"));
+        assertEquals(2, mPipeline.getPendingCount());
+        finish();
+
+        // The first one is being encoded already, so it's kept
+        assertFailed("0", IOException.class);
+        assertFailed("1", RejectedExecutionException.class);
+        assertFailed("2", IOException.class);
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws InterruptedException {
+        createFullPipeline(SnapshotPipeline.OverflowPolicy.BLOCK);
+
+        final AtomicBoolean isAccepted = new AtomicBoolean();
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                isAccepted.set(submit("2"));
+            }
+        });
+        submitter.start();
+        submitter.join(200);
+        assertTrue(submitter.isAlive());
+
+        mEncodeReleased.countDown();
+        submitter.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertTrue(isAccepted.get());
+        finish();
+
+        assertFailed("2", IOException.class);
+    }
+
+    @Test
+    public void snapshotsAreRejectedAfterShutdown() throws InterruptedException {
+        mPipeline = new SnapshotPipeline(2, SnapshotPipeline.OverflowPolicy.BLOCK);
+        mPipeline.setSnapshotListener(mListener);
+        mPipeline.shutdown();
+
+        assertFalse(submit("0"));
+        assertTrue(mPipeline.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFailed("0", RejectedExecutionException.class);
+        assertEquals(0, mPipeline.getPendingCount());
+    }
+
+    /**
+     * Holds two snapshots: the first one is being encoded, the second one waits for the encoder
+     */
+    private void createFullPipeline(SnapshotPipeline.OverflowPolicy policy) throws InterruptedException {
+        mPipeline = new SnapshotPipeline(2, policy);
+        mPipeline.setEncoder(mBlockingEncoder);
+        mPipeline.setSnapshotListener(mListener);
+        assertTrue(submit("0"));
+        assertTrue(mEncodeStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(submit("1"));
+    }
+
+    private boolean submit(String name) {
+        return mPipeline.submit(new byte[16], name);
+    }
+
+    private void finish() throws InterruptedException {
+        mEncodeReleased.countDown();
+        mPipeline.shutdown();
+        assertTrue(mPipeline.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, mPipeline.getPendingCount());
+    }
+
+    private void assertFailed(String name, Class<? extends Exception> errorClass) {
+        Exception error;
+        synchronized (mFailures) {
+            error = mFailures.get(name);
+        }
+        assertTrue("Snapshot " + name + " failed with " + error, errorClass.isInstance(error));
+    }
+}
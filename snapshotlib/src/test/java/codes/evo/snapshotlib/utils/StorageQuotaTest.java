@@ -0,0 +1,124 @@
+package codes.evo.snapshotlib.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Covers the order of eviction, the deletion itself runs on the I/O lane of a real worker
+ */
+public class StorageQuotaTest {
+
+    private File mFile;
+    private SnapshotManifest mManifest;
+    private StorageQuota mQuota;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("manifest", null);
+        mFile.delete();
+        mManifest = new SnapshotManifest(mFile);
+        mQuota = new StorageQuota(new BackgroundWorker(), 1000, 10);
+    }
+
+    @After
+    public void tearDown() {
+        mManifest.close();
+        mFile.delete();
+    }
+
+    @Test
+    public void oldestFirstFollowsTheOrderOfSaves() {
+        save("a", "b", "c", "d");
+        mManifest.remove("b");
+        mQuota.onSnapshotRead("a");
+
+        assertEquals(Arrays.asList("a", "c"), mQuota.getEvictionCandidates(mManifest, 2));
+        assertEquals(Arrays.asList("a", "c", "d"), mQuota.getEvictionCandidates(mManifest, 10));
+    }
+
+    @Test
+    public void leastRecentlyReadPutsReadSnapshotsLast() {
+        mQuota.setEvictionPolicy(StorageQuota.EvictionPolicy.LEAST_RECENTLY_READ);
+        save("a", "b", "c", "d");
+        mQuota.onSnapshotRead("b");
+        mQuota.onSnapshotRead("a");
+
+        assertEquals(Arrays.asList("c", "d", "b", "a"), mQuota.getEvictionCandidates(mManifest, 10));
+        assertEquals(Arrays.asList("c", "d"), mQuota.getEvictionCandidates(mManifest, 2));
+    }
+
+    @Test
+    public void snapshotsSavedBeforeTheQuotaGoFirst() {
+        mQuota.setEvictionPolicy(StorageQuota.EvictionPolicy.LEAST_RECENTLY_READ);
+        // Saved before the quota was installed, the quota wasn't told about them
+        mManifest.add("old1", 0, 10, 0, 0, 0);
+        mManifest.add("old2", 0, 10, 0, 0, 0);
+        save("new");
+        mQuota.onSnapshotRead("old1");
+
+        assertEquals(Arrays.asList("old2", "new", "old1"), mQuota.getEvictionCandidates(mManifest, 10));
+    }
+
+    @Test
+    public void savesAfterTheFirstEvictionKeepTheirOrder() {
+        mQuota.setEvictionPolicy(StorageQuota.EvictionPolicy.LEAST_RECENTLY_READ);
+        save("a", "b");
+        mQuota.getEvictionCandidates(mManifest, 10);
+        save("c");
+        mQuota.onSnapshotRead("a");
+
+        assertEquals(Arrays.asList("b", "c", "a"), mQuota.getEvictionCandidates(mManifest, 10));
+    }
+
+    @Test
+    public void deletedSnapshotsAreSkipped() {
+        mQuota.setEvictionPolicy(StorageQuota.EvictionPolicy.LEAST_RECENTLY_READ);
+        save("a", "b", "c");
+        mManifest.remove("a");
+        mQuota.onSnapshotDeleted("a");
+        // Removed without telling the quota
+        mManifest.remove("b");
+        // Never saved
+        mQuota.onSnapshotRead("unknown");
+
+        assertEquals(Arrays.asList("c"), mQuota.getEvictionCandidates(mManifest, 10));
+    }
+
+    @Test
+    public void undeletableSnapshotsAreSkipped() {
+        save("a", "b", "c", "d");
+        mQuota.onSnapshotDeleteFailed("a");
+        mQuota.onSnapshotDeleteFailed("c");
+
+        assertEquals(Arrays.asList("b", "d"), mQuota.getEvictionCandidates(mManifest, 2));
+        mQuota.setEvictionPolicy(StorageQuota.EvictionPolicy.LEAST_RECENTLY_READ);
+        assertEquals(Arrays.asList("b", "d"), mQuota.getEvictionCandidates(mManifest, 10));
+
+        // Deleted some other way
+        mManifest.remove("a");
+        mQuota.onSnapshotDeleted("a");
+        assertEquals(Arrays.asList("b", "d"), mQuota.getEvictionCandidates(mManifest, 10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void quotaMustBePositive() {
+        new StorageQuota(new BackgroundWorker(), 0, 10);
+    }
+
+    /**
+     * Saves the snapshots one after another, the way {@link LocalFileStorage} reports them
+     */
+    private void save(String... names) {
+        for (String name : names) {
+            mManifest.add(name, System.currentTimeMillis(), 10, 0, 0, 0);
+            mQuota.onSnapshotSaved(name);
+        }
+    }
+}